@@ -1,17 +1,20 @@
 import java.io.*;
 
+import server.ExecutionMode;
 import server.Server;
 
 public class MainServer {
  
     public static void main(String[] args) throws IOException {
-        if (args.length != 1)  {
-            System.err.println("MainServer <port>");
+        if (args.length < 1 || args.length > 3)  {
+            System.err.println("MainServer <port> [selector threads] [event|pool|virtual]");
             return;
         }
  
         int port = Integer.parseInt(args[0]);
-        new Server(port);
+        int selectorThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        ExecutionMode mode = args.length > 2 ? ExecutionMode.parse(args[2]) : ExecutionMode.EVENT;
+        new Server(port, selectorThreads, mode);
     }
 
-}
\ No newline at end of file
+}
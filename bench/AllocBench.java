@@ -0,0 +1,66 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import utils.BufferPool;
+import utils.FrameCodec;
+import utils.FrameDecoder;
+import utils.Protocol;
+
+// Bytes allocated per operation on the message path, measured with the
+// thread's allocation counter after a warm-up so the JIT has settled.
+// The decoder returns a new String[] per message and copies fields that
+// are not protocol constants, and the pool's lock-free queue allocates a
+// node per release, so those allocate a little; the encoder should not
+// allocate at all.
+public class AllocBench {
+
+    private static int WARMUP = 200000;
+    private static int OPERATIONS = 1000000;
+
+    interface Operation {
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM does not report allocated bytes per thread");
+            return;
+        }
+
+        BufferPool pool = new BufferPool(4096, 16);
+        ByteBuffer out = ByteBuffer.allocateDirect(4096);
+        String[] command = { Protocol.QUEUE, Protocol.RANKED };
+        String[] input = { Protocol.INPUT, "rock" };
+
+        measure(threads, "pool lease + release", () -> pool.release(pool.lease()));
+
+        measure(threads, "encode into reused buffer", () -> {
+            out.clear();
+            FrameCodec.encode(out, command);
+        });
+
+        ByteBuffer commandFrame = FrameCodec.encode(command);
+        FrameDecoder commandDecoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+        measure(threads, "decode protocol constants", () -> commandDecoder.decode(commandFrame.duplicate()));
+
+        ByteBuffer inputFrame = FrameCodec.encode(input);
+        FrameDecoder inputDecoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+        measure(threads, "decode free text", () -> inputDecoder.decode(inputFrame.duplicate()));
+    }
+
+    private static void measure(com.sun.management.ThreadMXBean threads, String name, Operation operation) throws IOException {
+        for (int i = 0; i < WARMUP; i++) operation.run();
+
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < OPERATIONS; i++) operation.run();
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        System.out.printf("%-28s %6.1f bytes/op%n", name, (double) allocated / OPERATIONS);
+    }
+
+}
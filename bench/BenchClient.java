@@ -0,0 +1,61 @@
+package bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import utils.FrameCodec;
+import utils.FrameDecoder;
+
+// Plain blocking client for the benchmarks. Speaks the same frames as
+// MainClient; a read that takes longer than the timeout throws
+// SocketTimeoutException.
+public class BenchClient implements Closeable {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final FrameDecoder decoder;
+    private final byte[] readBuffer;
+    private final Queue<String[]> received;
+
+    public BenchClient(String host, int port, int timeoutMillis) throws IOException {
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        socket.setSoTimeout(timeoutMillis);
+        socket.setTcpNoDelay(true);
+
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+        this.decoder = new FrameDecoder();
+        this.readBuffer = new byte[4096];
+        this.received = new ArrayDeque<>();
+    }
+
+    public void setTimeout(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+    }
+
+    public void send(String... fields) throws IOException {
+        ByteBuffer frame = FrameCodec.encode(fields);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    public String[] receive() throws IOException {
+        while (received.isEmpty()) {
+            int read = in.read(readBuffer);
+            if (read < 0) throw new EOFException("Server closed the connection");
+            received.addAll(decoder.decode(ByteBuffer.wrap(readBuffer, 0, read)));
+        }
+        return received.poll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
@@ -0,0 +1,197 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import utils.BufferPool;
+import utils.FrameCodec;
+import utils.FrameDecoder;
+import utils.Protocol;
+
+// Fuzz test and throughput benchmark for the wire framing. Every round
+// encodes random frames, cuts the bytes at random points and checks the
+// decoder returns exactly the frames that were sent. Then it feeds random
+// garbage, on its own and after valid frames, where the only acceptable
+// failure is an IOException. Exits with 1 on the first mismatch, printing
+// the seed to reproduce it.
+public class FrameFuzz {
+
+    private static int MAX_FIELDS = 6;
+    private static int THROUGHPUT_FRAMES = 100000;
+    private static long THROUGHPUT_NANOS = 2000000000L;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        BufferPool pool = new BufferPool(4096, 16);
+
+        System.out.println("seed " + seed);
+
+        checkVarintBoundaries(pool);
+
+        long frames = 0;
+        for (int round = 0; round < rounds; round++) {
+            frames += splitRound(random, pool);
+            garbageRound(random, pool, false);
+            garbageRound(random, pool, true);
+        }
+        System.out.println("fuzz: " + rounds + " rounds, " + frames + " frames decoded intact");
+
+        throughput(random, pool);
+    }
+
+    private static int splitRound(Random random, BufferPool pool) throws IOException {
+        List<String[]> sent = new ArrayList<>();
+        ByteBuffer wire = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE * 4);
+
+        int count = 1 + random.nextInt(20);
+        for (int i = 0; i < count; i++) {
+            String[] fields = randomFields(random);
+            if (FrameCodec.frameSize(fields) > wire.remaining()) break;
+
+            // both encoders must produce the same bytes
+            if (random.nextBoolean()) FrameCodec.encode(wire, fields);
+            else wire.put(FrameCodec.encode(fields));
+            sent.add(fields);
+        }
+        wire.flip();
+
+        FrameDecoder decoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+        List<String[]> received = new ArrayList<>();
+        feed(random, decoder, wire, received);
+        received.addAll(decoder.decode(ByteBuffer.allocate(0)));
+        decoder.release();
+
+        if (received.size() != sent.size()) fail("sent " + sent.size() + " frames, decoded " + received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            if (!Arrays.equals(sent.get(i), received.get(i))) {
+                fail("frame " + i + " sent as " + Arrays.toString(sent.get(i)) + " decoded as " + Arrays.toString(received.get(i)));
+            }
+        }
+        return sent.size();
+    }
+
+    private static void garbageRound(Random random, BufferPool pool, boolean afterValidFrames) {
+        ByteBuffer wire = ByteBuffer.allocate(8192);
+        if (afterValidFrames) FrameCodec.encode(wire, randomFields(random));
+
+        byte[] garbage = new byte[random.nextInt(wire.remaining() + 1)];
+        random.nextBytes(garbage);
+        wire.put(garbage).flip();
+
+        FrameDecoder decoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+        try {
+            feed(random, decoder, wire, new ArrayList<>());
+        } catch (IOException e) {
+            // a connection would be dropped here, which is fine
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail("garbage raised " + e);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    // Hands the bytes to the decoder in random pieces, often a single byte
+    private static void feed(Random random, FrameDecoder decoder, ByteBuffer wire, List<String[]> received) throws IOException {
+        while (wire.hasRemaining()) {
+            int piece = random.nextInt(4) == 0 ? 1 : 1 + random.nextInt(Math.min(wire.remaining(), 6000));
+            piece = Math.min(piece, wire.remaining());
+
+            ByteBuffer chunk = wire.slice();
+            chunk.limit(piece);
+            wire.position(wire.position() + piece);
+
+            received.addAll(decoder.decode(chunk));
+        }
+    }
+
+    // field lengths around the varint size steps
+    private static void checkVarintBoundaries(BufferPool pool) throws IOException {
+        for (int length: new int[] { 0, 1, 127, 128, 16383, 16384, FrameCodec.MAX_FRAME_SIZE - 4 }) {
+            String[] fields = { "x".repeat(length) };
+
+            FrameDecoder decoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+            List<String[]> received = decoder.decode(FrameCodec.encode(fields));
+            if (received.size() != 1 || !Arrays.equals(fields, received.get(0))) fail("field of " + length + " bytes");
+            decoder.release();
+        }
+    }
+
+    private static String[] randomFields(Random random) {
+        String[] fields = new String[random.nextInt(MAX_FIELDS + 1)];
+        for (int i = 0; i < fields.length; i++) {
+            if (random.nextInt(8) == 0) fields[i] = Protocol.KNOWN_VALUES[random.nextInt(Protocol.KNOWN_VALUES.length)];
+            else fields[i] = randomString(random, random.nextInt(50) == 0 ? 3000 : 40);
+        }
+        return fields;
+    }
+
+    // ASCII, 2 and 3 byte UTF-8 and surrogate pairs
+    private static String randomString(Random random, int maxLength) {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0: text.append((char) (0x20 + random.nextInt(0x5F))); break;
+                case 1: text.append((char) (0x80 + random.nextInt(0x780))); break;
+                case 2: text.append((char) (0x800 + random.nextInt(0xD000))); break;
+                default: text.appendCodePoint(0x10000 + random.nextInt(0x10000)); break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static void throughput(Random random, BufferPool pool) throws IOException {
+        ByteBuffer wire = ByteBuffer.allocate(THROUGHPUT_FRAMES * 64);
+        for (int i = 0; i < THROUGHPUT_FRAMES; i++) {
+            if (i % 2 == 0) FrameCodec.encode(wire, Protocol.AUTH, Protocol.SIMPLE, Protocol.LOGIN, "player" + random.nextInt(100000), "secret");
+            else FrameCodec.encode(wire, Protocol.INPUT, "rock");
+        }
+        wire.flip();
+
+        FrameDecoder decoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+        long frames = 0;
+        long bytes = 0;
+        long start = System.nanoTime();
+
+        // socket-sized reads, like the server's
+        while (System.nanoTime() - start < THROUGHPUT_NANOS) {
+            ByteBuffer pass = wire.duplicate();
+            while (pass.hasRemaining()) {
+                ByteBuffer chunk = pass.slice();
+                chunk.limit(Math.min(4096, pass.remaining()));
+                pass.position(pass.position() + chunk.limit());
+                frames += decoder.decode(chunk).size();
+            }
+            bytes += wire.limit();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("decode: %.0f frames/s, %.1f MB/s%n", frames / seconds, bytes / seconds / 1e6);
+
+        ByteBuffer out = ByteBuffer.allocateDirect(4096);
+        long encoded = 0;
+        start = System.nanoTime();
+        while (System.nanoTime() - start < THROUGHPUT_NANOS) {
+            for (int i = 0; i < 1000; i++) {
+                out.clear();
+                FrameCodec.encode(out, Protocol.AUTH, Protocol.SIMPLE, Protocol.LOGIN, "player", "secret");
+            }
+            encoded += 1000;
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("encode: %.0f frames/s%n", encoded / seconds);
+    }
+
+    private static void fail(String message) {
+        System.err.println("FAILED: " + message);
+        System.exit(1);
+    }
+
+}
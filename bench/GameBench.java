@@ -0,0 +1,131 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import server.ExecutionMode;
+import server.Server;
+import utils.Protocol;
+
+// Concurrent games per execution mode. Starts a server in this JVM, logs in
+// two players per game and never answers, so every game stays open until
+// its input timeout. Counts the games that actually greeted their players,
+// i.e. are running at the same time, and the heap, RSS and threads they
+// cost. In pool mode only the pool's workers run games, the rest wait.
+// The clients live in the same JVM and cost the same in every mode, so
+// compare the modes rather than read the numbers as absolute. Virtual mode
+// refuses to run on a JVM without virtual threads.
+//
+// It registers its players in ./docs, so run it from an empty directory.
+public class GameBench {
+
+    private static int GREETING_WAIT = 5000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("GameBench <event|pool|virtual> [games] [port]");
+            return;
+        }
+
+        ExecutionMode mode = ExecutionMode.parse(args[0]);
+        if (mode == ExecutionMode.VIRTUAL && !ExecutionMode.virtualThreadsAvailable()) {
+            // the server would fall back to platform threads, which is not what this compares
+            System.err.println("This JVM has no virtual threads (JDK 21+), virtual mode would run on platform threads");
+            System.exit(1);
+        }
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 28950;
+
+        if (Files.exists(Path.of("docs", "db_user.csv"))) {
+            System.err.println("./docs/db_user.csv exists, run GameBench from an empty directory");
+            return;
+        }
+        Files.createDirectories(Path.of("docs"));
+
+        // logins are not what is measured here
+        if (System.getProperty("hash.iterations") == null) System.setProperty("hash.iterations", "1000");
+
+        new Server(port, 1, mode);
+        Thread.sleep(500);
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<BenchClient> clients = new CopyOnWriteArrayList<>();
+        AtomicInteger greeted = new AtomicInteger();
+        int loginThreads = 8;
+
+        long start = System.nanoTime();
+        LoadTest.runAll(loginThreads, t -> {
+            for (int i = t; i < games * 2; i += loginThreads) {
+                BenchClient client = new BenchClient("localhost", port, 5000);
+                client.send(Protocol.AUTH, Protocol.SIMPLE, Protocol.REGISTER, "bench" + i, "pw");
+                client.receive();
+                clients.add(client);
+            }
+        });
+
+        // games that have not started GREETING_WAIT after the last login count as not running
+        long deadline = System.currentTimeMillis() + GREETING_WAIT;
+        LoadTest.runAll(loginThreads, t -> {
+            for (int i = t; i < clients.size(); i += loginThreads) {
+                try {
+                    clients.get(i).setTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                    clients.get(i).receive();
+                    greeted.incrementAndGet();
+                } catch (SocketTimeoutException e) {
+                    // the game never started
+                }
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long heap = usedHeap() - heapBefore;
+        long rss = rss() - rssBefore;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        int running = greeted.get() / 2;
+
+        System.out.printf("%s mode (%s): %d of %d games running after %.1fs%n", mode, runsOn(mode), running, games, seconds);
+        System.out.printf("heap +%d KB, RSS +%d KB, threads +%d%n", heap / 1024, rss / 1024, threads);
+        if (running > 0) System.out.printf("per running game: heap %d B, RSS %d B%n", heap / running, rss / running);
+
+        for (BenchClient client: clients) client.close();
+        System.exit(0);
+    }
+
+    private static String runsOn(ExecutionMode mode) {
+        switch (mode) {
+            case EVENT: return "games on the event loops";
+            case POOL: return "games on pool workers";
+            default: return "games on virtual threads";
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // resident set size from /proc, 0 where that is not available
+    private static long rss() {
+        try {
+            for (String line: Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.PasswordHashes;
+
+// Throughput of PasswordHashes at a given PBKDF2 cost: new hashes, plain
+// verifications, and verifications answered by the short-TTL cache (the
+// same user and password logging in again).
+public class HashBench {
+
+    private static long WARMUP_NANOS = 1000000000L;
+
+    interface Operation {
+        void run(int thread, long i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : PasswordHashes.DEFAULT_ITERATIONS;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        PasswordHashes.setIterations(iterations);
+        PasswordHashes.setVerificationCacheTtl(60, TimeUnit.SECONDS);
+        System.out.println(iterations + " iterations, " + threads + " threads");
+
+        String stored = PasswordHashes.hash("secret");
+
+        measure("hash", threads, seconds, (thread, i) -> PasswordHashes.hash("secret"));
+        measure("verify", threads, seconds, (thread, i) -> PasswordHashes.verify("secret", stored));
+
+        for (int t = 0; t < threads; t++) PasswordHashes.verify("user" + t, "secret", stored);
+        measure("verify, cached", threads, seconds, (thread, i) -> PasswordHashes.verify("user" + thread, "secret", stored));
+    }
+
+    private static void measure(String name, int threads, int seconds, Operation operation) throws InterruptedException {
+        // warm-up, so the JIT has compiled the PBKDF2 loop
+        long warmup = System.nanoTime() + WARMUP_NANOS;
+        for (long i = 0; System.nanoTime() < warmup; i++) operation.run(0, i);
+
+        AtomicLong operations = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        long start = System.nanoTime();
+        LoadTest.runAll(threads, thread -> {
+            long done = 0;
+            while (System.nanoTime() < deadline) operation.run(thread, done++);
+            operations.addAndGet(done);
+        });
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-16s %10.1f ops/s  %10.3f ms/op%n", name, operations.get() / elapsed, elapsed * 1000 * threads / operations.get());
+    }
+
+}
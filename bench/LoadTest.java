@@ -0,0 +1,100 @@
+package bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.Histogram;
+import utils.Protocol;
+
+// Load test for the server's event loops, run against a server started with
+//
+//   java MainServer <port> [selector threads]
+//
+// First every connection is opened and answered once, which gives accepts
+// per second. Then each thread keeps sending a request to its connections
+// and waiting for the reply, which gives the round trips per second and the
+// read-to-reply latency percentiles. The request is an unauthenticated
+// QUEUE, so the server answers "Invalid token" and no state is created.
+// Watch the server's CPU with top before and after to check it idles.
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("LoadTest <host> <port> [connections] [seconds] [threads]");
+            return;
+        }
+
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        List<List<BenchClient>> clients = new ArrayList<>();
+        for (int t = 0; t < threads; t++) clients.add(new ArrayList<>());
+
+        // accepts: connect and get the first reply
+        long start = System.nanoTime();
+        runAll(threads, t -> {
+            for (int i = t; i < connections; i += threads) {
+                BenchClient client = new BenchClient(host, port, 10000);
+                roundTrip(client);
+                clients.get(t).add(client);
+            }
+        });
+        double acceptSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("accepts: %d connections in %.2fs, %.0f/s%n", connections, acceptSeconds, connections / acceptSeconds);
+
+        // round trips over the open connections
+        Histogram latency = new Histogram();
+        AtomicLong roundTrips = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        start = System.nanoTime();
+        runAll(threads, t -> {
+            List<BenchClient> own = clients.get(t);
+            while (System.nanoTime() < deadline) {
+                for (BenchClient client: own) {
+                    long sent = System.nanoTime();
+                    roundTrip(client);
+                    latency.record((System.nanoTime() - sent) / 1000);
+                }
+                roundTrips.addAndGet(own.size());
+            }
+        });
+        double roundTripSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("round trips: %d in %.2fs, %.0f/s%n", roundTrips.get(), roundTripSeconds, roundTrips.get() / roundTripSeconds);
+        System.out.println("latency us: " + latency);
+
+        for (List<BenchClient> own: clients) {
+            for (BenchClient client: own) client.close();
+        }
+    }
+
+    private static void roundTrip(BenchClient client) throws IOException {
+        client.send(Protocol.QUEUE, Protocol.SIMPLE);
+        client.receive();
+    }
+
+    interface Work {
+        void run(int thread) throws Exception;
+    }
+
+    static void runAll(int threads, Work work) throws InterruptedException {
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            running.add(new Thread(() -> {
+                try { work.run(thread); }
+                catch (Exception e) { e.printStackTrace(); }
+            }, "load-" + t));
+        }
+
+        for (Thread thread: running) thread.start();
+        for (Thread thread: running) thread.join();
+    }
+
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import server.ThreadPool;
+
+// Work-stealing pool checks. The first part has producers submit tiny tasks
+// while one consumer takes them back through the completion queue, and
+// counts exactly how many ran and how many were handed off, once each.
+// The second submits one task per worker at a time, each blocked for a
+// moment, and counts tasks that only started after another task of the
+// same round had finished, i.e. waited for a busy worker while an idle
+// one was left asleep. A handful of those can be the OS scheduler on a
+// small or busy machine (a JDK fixed thread pool shows the same); lost
+// wake-ups show up as a steady share of the rounds. Exits with 1 if a
+// completion count is off.
+public class PoolBench {
+
+    private static long BUSY_NANOS = 20000000L;
+    private static int WAKE_ROUNDS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int tasksPerProducer = args.length > 2 ? Integer.parseInt(args[2]) : 500000;
+
+        System.out.println(workers + " workers, " + producers + " producers");
+        completions(workers, producers, tasksPerProducer);
+        wakeUps(workers);
+        System.exit(0);
+    }
+
+    private static class Task implements Runnable {
+        final int id;
+        final AtomicLong runs;
+
+        Task(int id, AtomicLong runs) {
+            this.id = id;
+            this.runs = runs;
+        }
+
+        @Override
+        public void run() { runs.incrementAndGet(); }
+    }
+
+    private static void completions(int workers, int producers, int tasksPerProducer) throws Exception {
+        ThreadPool pool = new ThreadPool(workers, true);
+        int total = producers * tasksPerProducer;
+        AtomicLong runs = new AtomicLong();
+        boolean[] handed = new boolean[total];
+        long[] handoffs = new long[2];
+
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < total; i++) {
+                    Task task = (Task) pool.takeCompleted();
+                    if (handed[task.id]) handoffs[1]++;
+                    handed[task.id] = true;
+                    handoffs[0]++;
+                }
+            } catch (InterruptedException e) {
+                // timed out below
+            }
+        }, "completion-consumer");
+
+        long start = System.nanoTime();
+        consumer.start();
+        LoadTest.runAll(producers, p -> {
+            for (int i = 0; i < tasksPerProducer; i++) pool.submit(new Task(p * tasksPerProducer + i, runs));
+        });
+        consumer.join(60000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (consumer.isAlive()) {
+            consumer.interrupt();
+            consumer.join();
+        }
+
+        System.out.printf("completions: submitted %d, ran %d, handed off %d, twice %d, %.0f tasks/s%n",
+                          total, runs.get(), handoffs[0], handoffs[1], total / seconds);
+        if (runs.get() != total || handoffs[0] != total || handoffs[1] != 0) fail("lost or repeated tasks");
+
+        pool.shutdown();
+        if (!pool.awaitTermination(5, TimeUnit.SECONDS) || !pool.isTerminated()) fail("pool did not terminate");
+    }
+
+    private static void wakeUps(int workers) throws Exception {
+        ThreadPool pool = new ThreadPool(workers);
+        int late = 0;
+
+        for (int round = 0; round < WAKE_ROUNDS; round++) {
+            CountDownLatch done = new CountDownLatch(workers);
+            AtomicInteger finished = new AtomicInteger();
+            AtomicInteger lateInRound = new AtomicInteger();
+
+            for (int i = 0; i < workers; i++) {
+                pool.submit(() -> {
+                    if (finished.get() > 0) lateInRound.incrementAndGet();
+
+                    // blocked like a game waiting on input, so this also holds on one core
+                    LockSupport.parkNanos(BUSY_NANOS);
+
+                    finished.incrementAndGet();
+                    done.countDown();
+                });
+            }
+
+            if (!done.await(10, TimeUnit.SECONDS)) fail("round " + round + " did not finish");
+            late += lateInRound.get();
+        }
+
+        System.out.printf("wake-ups: %d rounds of %d tasks, %d started after a busy worker finished%n", WAKE_ROUNDS, workers, late);
+        pool.shutdownNow();
+    }
+
+    private static void fail(String message) {
+        System.err.println("FAILED: " + message);
+        System.exit(1);
+    }
+
+}
@@ -6,6 +6,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.net.InetSocketAddress;
+import utils.Protocol;
 import utils.Utils;
 
 import java.security.NoSuchAlgorithmException;
@@ -18,6 +19,8 @@ public class Client {
     private static String LOGIN_FAIL_MSG = "Failed to login, re-input your credentials.";
     private static String REGISTER_FAIL_MSG = "Failed to register, re-input your credentials.";
     private static String INVALID_TOKEN_MSG = "Invalid token";
+    private static String RECONNECTED_IN_GAME_MSG = "Reconnected, back in game.";
+    private static String RECONNECTED_MSG = "Reconnected.";
     private static Path TOKEN_PATH = Paths.get("./client/token.txt");
 
     private ClientCommunicator communicator;
@@ -61,20 +64,32 @@ public class Client {
 
     public void run() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, InterruptedException {  
         
+        String reconnected = null;
         if (!hasToken()) { authenticate(); }
-        else { handleToken(); }
+        else { reconnected = handleToken(); }
 
-        Utils.clearConsole();
+        String foundGame;
+        String wonGame;
+        // "Reconnected." means we were neither queued nor playing, so go to the menu
+        if (!RECONNECTED_MSG.equals(reconnected)) {
+
+            if (!RECONNECTED_IN_GAME_MSG.equals(reconnected)) {
+
+                Utils.clearConsole();
 
-        System.out.println("In queue, finding a match...");
+                System.out.println("In queue, finding a match...");
 
-        String foundGame = communicator.readString();
-        System.out.println(foundGame);
+                foundGame = communicator.readString();
+                System.out.println(foundGame);
+
+            }
 
-        communicator.write(communicator.getUserInput("Send message to server: "));
+            communicator.write(Protocol.INPUT, communicator.getUserInput("Send message to server: "));
 
-        String wonGame = communicator.readString();
-        System.out.println(wonGame);
+            wonGame = communicator.readString();
+            System.out.println(wonGame);
+
+        }
 
         String input = "";
         
@@ -82,15 +97,25 @@ public class Client {
         while (true) {
             
             Utils.clearConsole();
-            input = communicator.getUserInput("What type of game do you want to play?\n\n1.) Simple\n2.) Ranked\n3.) Quit\n\nOpt: ");
+            input = communicator.getUserInput("What type of game do you want to play?\n\n1.) Simple\n2.) Ranked\n3.) Quit\n4.) Leaderboard\n\nOpt: ");
 
-            if (!(input.equals("1") || input.equals("2") || input.equals("3"))) {
+            if (!(input.equals("1") || input.equals("2") || input.equals("3") || input.equals("4"))) {
                 System.out.println("Not a valid input... Try again!\n");
                 continue;
             }
 
-            communicator.write(input);
-            if (input.equals("3")) exit();
+            if (input.equals("3")) {
+                communicator.write(Protocol.QUIT);
+                exit();
+            }
+
+            if (input.equals("4")) {
+                communicator.write(Protocol.RANK);
+                System.out.println(communicator.readString());
+                communicator.getUserInput("\nPress enter to go back");
+                continue;
+            }
+            communicator.write(Protocol.QUEUE, input);
 
             Utils.clearConsole();
 
@@ -99,7 +124,7 @@ public class Client {
             foundGame = communicator.readString();
             System.out.println(foundGame);
 
-            communicator.write(communicator.getUserInput("Send message to server: "));
+            communicator.write(Protocol.INPUT, communicator.getUserInput("Send message to server: "));
             
             wonGame = communicator.readString();
             System.out.println(wonGame);
@@ -109,18 +134,22 @@ public class Client {
 
     private boolean hasToken() { return Files.exists(TOKEN_PATH); }
     
-    private void handleToken() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, InterruptedException {
+    // Returns the server's reconnect message, or null if the token was
+    // refused and we logged in again. After a reconnect into a running game
+    // its "Found game" message went to the old connection.
+    private String handleToken() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException, InterruptedException {
 
-        communicator.write(Files.readString(TOKEN_PATH));
+        communicator.write(Protocol.TOKEN, Files.readString(TOKEN_PATH));
         
         String serverResponse = communicator.readString();
         if (serverResponse.equals(INVALID_TOKEN_MSG)) {
             Files.delete(TOKEN_PATH);
             authenticate();
-        } else {
-            System.out.println(serverResponse);
+            return null;
         }
-        
+
+        System.out.println(serverResponse);
+        return serverResponse;
 
     }
 
@@ -143,7 +172,7 @@ public class Client {
             }
 
             if (firstInput.equals("3")) {
-                communicator.write(firstInput);
+                communicator.write(Protocol.QUIT);
                 exit();
             }
 
@@ -156,7 +185,7 @@ public class Client {
             }
             
             
-            String credentials = getCredentials();  
+            String[] credentials = getCredentials();  
             if (credentials == null) {
                 System.out.println("Blank characters are not allowed\n");
                 continue;
@@ -164,7 +193,7 @@ public class Client {
             
             String serverResponse = "";
 
-            communicator.write(String.format("%s:%s:%s", firstInput, secondInput, credentials));
+            communicator.write(Protocol.AUTH, firstInput, secondInput, credentials[0], credentials[1]);
             serverResponse = communicator.readString();
 
             if (serverResponse.equals(LOGIN_FAIL_MSG) || serverResponse.equals(REGISTER_FAIL_MSG)) {
@@ -172,7 +201,7 @@ public class Client {
                 continue;
             }
 
-            this.name = Utils.getUsername(credentials);
+            this.name = credentials[0];
             notLoggedIn = false;
             createTokenFile(serverResponse);
 
@@ -180,16 +209,14 @@ public class Client {
 
     }
 
-    private String getCredentials() {
+    private String[] getCredentials() {
         String username = communicator.getUserInput("Username: ");
         String password = communicator.getUserInput("Password: ");
 
-        String credentials = String.format("%s/%s", username, password);
-
         Utils.clearConsole();
 
-        if (credentials.split("/").length < 2) return null;
-        return credentials;
+        if (username.isBlank() || password.isBlank()) return null;
+        return new String[]{username, password};
     }
 
     private void createTokenFile(String token) throws IOException {
@@ -3,18 +3,28 @@ package client;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
 import java.util.Scanner;
 
+import utils.FrameCodec;
+import utils.FrameDecoder;
+
 
 public class ClientCommunicator {
     
     private SocketChannel channel;
     private Scanner scanner;
+    private FrameDecoder decoder;
+    private ByteBuffer writeBuffer;
+    private Queue<String[]> pending;
 
     public ClientCommunicator(SocketChannel channel) throws IOException {
         this.channel = channel;
         this.scanner = new Scanner(System.in);
+        this.decoder = new FrameDecoder();
+        this.writeBuffer = ByteBuffer.allocateDirect(4096);
+        this.pending = new ArrayDeque<>();
     }
 
     public String getUserInput(String message) {
@@ -22,23 +32,26 @@ public class ClientCommunicator {
         return scanner.nextLine();
     }
 
-    public int read(ByteBuffer readBuffer) throws IOException {
+    public int read() throws IOException {
 
-        int bytesRead = channel.read(readBuffer);    
+        int bytesRead = decoder.readFrom(channel);    
         
-        while (bytesRead <= 0) {
-            bytesRead = channel.read(readBuffer);
+        while (bytesRead == 0) {
+            bytesRead = decoder.readFrom(channel);
         }
         
-        readBuffer.flip();
         return bytesRead;
 
     }
 
-    public void write(String message) throws IOException {
+    public void write(String... fields) throws IOException {
+
+        ByteBuffer frame = writeBuffer;
+        frame.clear();
+        if (FrameCodec.encode(frame, fields)) frame.flip();
+        else frame = FrameCodec.encode(fields);
 
-        ByteBuffer writeBuffer = ByteBuffer.wrap(message.getBytes());
-        channel.write(writeBuffer);
+        while (frame.hasRemaining()) channel.write(frame);
 
     }
 
@@ -50,11 +63,13 @@ public class ClientCommunicator {
 
     public String readString() throws IOException {
         
-        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-        read(readBuffer);
+        while (pending.isEmpty()) {
+            if (read() < 0) throw new EOFException("Server closed the connection");
+            pending.addAll(decoder.decode());
+        }
 
-        Charset charset = Charset.forName("UTF-8");
-        return charset.decode(readBuffer).toString();
+        String[] message = pending.poll();
+        return message.length > 0 ? message[0] : "";
 
     }
     
@@ -1,4 +1,5 @@
 ./clean_up.sh
 javac MainServer.java
 javac MainClient.java
+javac bench/*.java
 clear
\ No newline at end of file
@@ -0,0 +1,67 @@
+package game;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+// Standard Elo. A team plays as one player rated at its members' average;
+// the winner scores 1 against every other team and each of those 0 against
+// it, and every member of a team moves by the team's change. With K = 20 an
+// even 1v1 moves both players by 10.
+public class EloRating implements RatingEngine {
+
+    private static double SCALE = 400;
+
+    private final double kFactor;
+
+    public EloRating(double kFactor) {
+        this.kFactor = kFactor;
+    }
+
+    public static double expectedScore(double rating, double opponent) {
+        return 1 / (1 + Math.pow(10, (opponent - rating) / SCALE));
+    }
+
+    @Override
+    public Map<String, Integer> rate(List<MatchResult> results, ToIntFunction<String> current) {
+        Map<String, Integer> ratings = new HashMap<>();
+
+        for (MatchResult result: results) {
+
+            int teams = result.teams.size();
+            double[] average = new double[teams];
+            for (int t = 0; t < teams; t++) average[t] = average(result.teams.get(t), ratings, current);
+
+            for (int t = 0; t < teams; t++) {
+
+                double change = 0;
+                for (int other = 0; other < teams; other++) {
+                    if (other == t || (t != result.winningTeam && other != result.winningTeam)) continue;
+
+                    double score = t == result.winningTeam ? 1 : 0;
+                    change += kFactor * (score - expectedScore(average[t], average[other]));
+                }
+
+                // losers only played the winner, the winner played everyone
+                if (t == result.winningTeam) change /= Math.max(teams - 1, 1);
+
+                for (String player: result.teams.get(t)) {
+                    int rating = ratings.containsKey(player) ? ratings.get(player) : current.applyAsInt(player);
+                    ratings.put(player, Math.max(0, (int) Math.round(rating + change)));
+                }
+
+            }
+
+        }
+
+        return ratings;
+    }
+
+    private static double average(List<String> team, Map<String, Integer> ratings, ToIntFunction<String> current) {
+        double total = 0;
+        for (String player: team) total += ratings.containsKey(player) ? ratings.get(player) : current.applyAsInt(player);
+        return total / team.size();
+    }
+
+}
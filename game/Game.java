@@ -1,96 +1,247 @@
 package game;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import server.ClientInfo;
 import server.ServerCommunicator;
+import server.TimerWheel;
 
+// A match is a small state machine: it is started by the matchmaker, fed
+// player input by the event loops and moved forward by timer callbacks, so
+// it never holds a thread while waiting. Running it as a Runnable instead
+// drives the same states from a thread that blocks on the player input.
 public class Game implements Runnable {
 
+    private static int RESULT_DELAY = 2000;
+    private static int INPUT_TIMEOUT = 60000;
+
+    private enum State { CREATED, WAITING_INPUT, RESOLVING, FINISHED }
+
     private List<ClientInfo> players;
-    
-    public ClientInfo winner;
+    private List<List<ClientInfo>> teams;
+    private Map<ClientInfo, String> inputs;
+    private State state;
+    private TimerWheel timer;
+    private TimerWheel.Timeout inputTimeout;
+    private Consumer<Game> onFinish;
+    private volatile BlockingQueue<Input> inbox;
+
+    public List<ClientInfo> winningTeam;
     public boolean isRanked;
-    
+    public long startedAt;
+    public long finishedAt;
+
     public Game(List<ClientInfo> players, boolean isRanked) {
+        this(Teams.solo(players), players, isRanked);
+    }
+
+    public static Game ofTeams(List<List<ClientInfo>> teams, boolean isRanked) {
+        List<ClientInfo> players = new ArrayList<>();
+        for (List<ClientInfo> team: teams) players.addAll(team);
+        return new Game(teams, players, isRanked);
+    }
+
+    private Game(List<List<ClientInfo>> teams, List<ClientInfo> players, boolean isRanked) {
+        this.teams = teams;
         this.players = players;
         this.isRanked = isRanked;
+        this.inputs = new LinkedHashMap<>();
+        this.state = State.CREATED;
     }
 
     public List<ClientInfo> getPlayers() {
         return this.players;
     }
 
-    private void greetPlayers() throws IOException {
+    public List<List<ClientInfo>> getTeams() {
+        return this.teams;
+    }
 
-        String playersNames = String.join("\n", this.players.stream()
-                                     .map(player -> player.name)
-                                     .collect(Collectors.toList()));
-                                     
+    private boolean isTeamGame() {
+        return this.teams.size() < this.players.size();
+    }
 
-        for (ClientInfo player: players) {
-            player.getCommunicator().write("Found game with players: \n" + playersNames + "\n");
-        }
+    private static String names(List<ClientInfo> team, String separator) {
+        return String.join(separator, team.stream()
+                                          .map(player -> player.name)
+                                          .collect(Collectors.toList()));
+    }
 
+    public void setOnFinish(Consumer<Game> onFinish) {
+        this.onFinish = onFinish;
     }
 
-    private void sendGameResult() throws IOException {
+    public synchronized boolean isFinished() {
+        return state == State.FINISHED;
+    }
 
-        for (ClientInfo player: players) {
-            player.getCommunicator().write("Winner was: " + this.winner.name + "!");
+    private List<ServerCommunicator> getCommunicators() {
+        return this.players.stream()
+                   .map(ClientInfo::getCommunicator)
+                   .collect(Collectors.toList());
+    }
+
+    private void greetPlayers() {
+
+        if (!isTeamGame()) {
+            ServerCommunicator.broadcast(getCommunicators(), "Found game with players: \n" + names(this.players, "\n") + "\n");
+            return;
+        }
+
+        StringBuilder message = new StringBuilder("Found game with teams: \n");
+        for (int i = 0; i < teams.size(); i++) {
+            message.append("Team ").append(i + 1).append(": ").append(names(teams.get(i), ", ")).append("\n");
         }
+        ServerCommunicator.broadcast(getCommunicators(), message.toString());
 
     }
 
-    @Override
-    public void run() {
+    private void sendGameResult() {
 
-        try { greetPlayers(); } 
-        catch (IOException e) { e.printStackTrace(); }
+        if (!isTeamGame()) ServerCommunicator.broadcast(getCommunicators(), "Winner was: " + this.winningTeam.get(0).name + "!");
+        else ServerCommunicator.broadcast(getCommunicators(), "Winning team: " + names(this.winningTeam, ", ") + "!");
 
+    }
 
-        for (ClientInfo player: players) {
+    public synchronized void start(TimerWheel timer) {
+
+        if (state != State.CREATED) return;
+        this.timer = timer;
+
+        for (ClientInfo player: players) player.game = this;
+        state = State.WAITING_INPUT;
+        this.startedAt = System.nanoTime();
+
+        greetPlayers();
+
+        // players that never answer (e.g. dropped connections) don't hold the match forever
+        inputTimeout = timer.schedule(this::resolve, INPUT_TIMEOUT, TimeUnit.MILLISECONDS);
+
+    }
 
-            ServerCommunicator playerCommunicator = player.getCommunicator();
-            String playerInput;
-            try {
+    public void onInput(ClientInfo player, String input) {
 
-                playerInput = playerCommunicator.readString();
-                while (playerInput == null)  {
-                    playerInput = playerCommunicator.readString();
-                } 
-                System.out.println("[GAME] - " + player.name + " input: " + playerInput);
+        BlockingQueue<Input> blockingInbox = inbox;
+        if (blockingInbox != null) {
+            blockingInbox.add(new Input(player, input));
+            return;
+        }
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            } 
+        synchronized (this) {
 
+            if (!recordInput(player, input)) return;
+
+            if (inputs.size() == players.size()) {
+                inputTimeout.cancel();
+                resolve();
+            }
 
         }
 
-        
+    }
+
+    private synchronized boolean recordInput(ClientInfo player, String input) {
+
+        if (state != State.WAITING_INPUT || inputs.containsKey(player)) return false;
+
+        inputs.put(player, input);
+        System.out.println("[GAME] - " + player.name + " input: " + input);
+        return true;
+
+    }
+
+    private synchronized void resolve() {
+
+        if (state != State.WAITING_INPUT) return;
+
+        decideWinner();
+        timer.schedule(this::finish, RESULT_DELAY, TimeUnit.MILLISECONDS);
+
+    }
+
+    private void decideWinner() {
+
         Random random = new Random();
-        int randInt = random.nextInt(players.size());
+        int randInt = random.nextInt(teams.size());
 
-        this.winner = players.get(randInt);
+        // ratings are updated by the server's rating engine once the game is over
+        this.winningTeam = teams.get(randInt);
+
+        state = State.RESOLVING;
+
+    }
+
+    @Override
+    public void run() {
+
+        synchronized (this) {
+
+            if (state != State.CREATED) return;
+            this.inbox = new LinkedBlockingQueue<>();
+
+            for (ClientInfo player: players) player.game = this;
+            state = State.WAITING_INPUT;
+            this.startedAt = System.nanoTime();
+
+            greetPlayers();
+
+        }
+
+        long deadline = System.currentTimeMillis() + INPUT_TIMEOUT;
+        try {
+
+            while (inputs.size() < players.size()) {
+
+                Input next = inbox.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (next == null) break;
+
+                recordInput(next.player, next.text);
 
-        if (isRanked) {
-            
-            for (ClientInfo player: players) {
-                if (player.equals(winner)) player.elo += 10;
-                else if (player.elo > 10) player.elo -= 10; 
             }
 
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
 
-        try { Thread.sleep(2000); } 
+        synchronized (this) { decideWinner(); }
+
+        try { Thread.sleep(RESULT_DELAY); }
         catch (InterruptedException e) { e.printStackTrace(); }
 
-        try { sendGameResult(); } 
-        catch (IOException e) { e.printStackTrace(); }
+        finish();
+
+    }
+
+    private synchronized void finish() {
 
+        state = State.FINISHED;
+        finishedAt = System.nanoTime();
+        for (ClientInfo player: players) {
+            if (player.game == this) player.game = null;
+        }
+
+        sendGameResult();
+
+        if (onFinish != null) onFinish.accept(this);
+
+    }
+
+    private static class Input {
+        final ClientInfo player;
+        final String text;
+
+        Input(ClientInfo player, String text) {
+            this.player = player;
+            this.text = text;
+        }
     }
-}
\ No newline at end of file
+}
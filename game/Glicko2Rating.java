@@ -0,0 +1,187 @@
+package game;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+// Glicko-2 (Glickman, "Example of the Glicko-2 system"). Each batch is one
+// rating period. Teams play as one opponent at the average rating and
+// deviation of their members; the winning team beats every other team and
+// the losing teams only lose to it. Deviation and volatility are kept here,
+// in memory: a player seen for the first time starts from their stored
+// rating with the initial deviation.
+public class Glicko2Rating implements RatingEngine {
+
+    private static double GLICKO_SCALE = 173.7178;
+    private static double CONVERGENCE = 0.000001;
+
+    private final double initialDeviation;
+    private final double initialVolatility;
+    private final double tau;
+    private final Map<String, State> states;
+
+    public Glicko2Rating(double initialDeviation, double initialVolatility, double tau) {
+        this.initialDeviation = initialDeviation;
+        this.initialVolatility = initialVolatility;
+        this.tau = tau;
+        this.states = new ConcurrentHashMap<>();
+    }
+
+    private static class State {
+        double rating;
+        double deviation;
+        double volatility;
+
+        State(double rating, double deviation, double volatility) {
+            this.rating = rating;
+            this.deviation = deviation;
+            this.volatility = volatility;
+        }
+    }
+
+    private static class Outcome {
+        final double opponentRating;
+        final double opponentDeviation;
+        final double score;
+
+        Outcome(double opponentRating, double opponentDeviation, double score) {
+            this.opponentRating = opponentRating;
+            this.opponentDeviation = opponentDeviation;
+            this.score = score;
+        }
+    }
+
+    @Override
+    public Map<String, Integer> rate(List<MatchResult> results, ToIntFunction<String> current) {
+
+        // everyone is rated against the opponents' ratings from before the period
+        Map<String, List<Outcome>> outcomes = new LinkedHashMap<>();
+        for (MatchResult result: results) {
+
+            int teams = result.teams.size();
+            double[] rating = new double[teams];
+            double[] deviation = new double[teams];
+
+            for (int t = 0; t < teams; t++) {
+                for (String player: result.teams.get(t)) {
+                    State state = state(player, current);
+                    rating[t] += state.rating;
+                    deviation[t] += state.deviation;
+                }
+                rating[t] /= result.teams.get(t).size();
+                deviation[t] /= result.teams.get(t).size();
+            }
+
+            for (int t = 0; t < teams; t++) {
+                for (int other = 0; other < teams; other++) {
+                    if (other == t || (t != result.winningTeam && other != result.winningTeam)) continue;
+
+                    Outcome outcome = new Outcome(rating[other], deviation[other], t == result.winningTeam ? 1 : 0);
+                    for (String player: result.teams.get(t)) {
+                        outcomes.computeIfAbsent(player, name -> new ArrayList<>()).add(outcome);
+                    }
+                }
+            }
+
+        }
+
+        Map<String, State> updated = new HashMap<>();
+        for (Map.Entry<String, List<Outcome>> entry: outcomes.entrySet()) {
+            updated.put(entry.getKey(), update(state(entry.getKey(), current), entry.getValue()));
+        }
+
+        Map<String, Integer> ratings = new HashMap<>();
+        for (Map.Entry<String, State> entry: updated.entrySet()) {
+            states.put(entry.getKey(), entry.getValue());
+            ratings.put(entry.getKey(), Math.max(0, (int) Math.round(entry.getValue().rating)));
+        }
+
+        return ratings;
+    }
+
+    private State state(String player, ToIntFunction<String> current) {
+        State state = states.get(player);
+        if (state != null) return state;
+        return new State(current.applyAsInt(player), initialDeviation, initialVolatility);
+    }
+
+    // Steps 2 to 8 of the Glicko-2 paper, ratings on the Glicko-2 scale around 0
+    private State update(State player, List<Outcome> games) {
+        double mu = 0;
+        double phi = player.deviation / GLICKO_SCALE;
+        double sigma = player.volatility;
+
+        double inverseV = 0;
+        double improvement = 0;
+        for (Outcome game: games) {
+            double opponentMu = (game.opponentRating - player.rating) / GLICKO_SCALE;
+            double opponentPhi = game.opponentDeviation / GLICKO_SCALE;
+
+            double g = g(opponentPhi);
+            double e = 1 / (1 + Math.exp(-g * (mu - opponentMu)));
+
+            inverseV += g * g * e * (1 - e);
+            improvement += g * (game.score - e);
+        }
+
+        double v = 1 / inverseV;
+        double delta = v * improvement;
+
+        double newSigma = volatility(phi, sigma, v, delta);
+        double phiStar = Math.sqrt(phi * phi + newSigma * newSigma);
+        double newPhi = 1 / Math.sqrt(1 / (phiStar * phiStar) + 1 / v);
+        double newMu = mu + newPhi * newPhi * improvement;
+
+        return new State(player.rating + GLICKO_SCALE * newMu, GLICKO_SCALE * newPhi, newSigma);
+    }
+
+    private static double g(double phi) {
+        return 1 / Math.sqrt(1 + 3 * phi * phi / (Math.PI * Math.PI));
+    }
+
+    // Illinois iteration of step 5
+    private double volatility(double phi, double sigma, double v, double delta) {
+        double a = Math.log(sigma * sigma);
+
+        double lower = a;
+        double upper;
+        if (delta * delta > phi * phi + v) {
+            upper = Math.log(delta * delta - phi * phi - v);
+        } else {
+            int k = 1;
+            while (f(a - k * tau, phi, v, delta, a) < 0) k++;
+            upper = a - k * tau;
+        }
+
+        double fLower = f(lower, phi, v, delta, a);
+        double fUpper = f(upper, phi, v, delta, a);
+
+        while (Math.abs(upper - lower) > CONVERGENCE) {
+            double next = lower + (lower - upper) * fLower / (fUpper - fLower);
+            double fNext = f(next, phi, v, delta, a);
+
+            if (fNext * fUpper <= 0) {
+                lower = upper;
+                fLower = fUpper;
+            } else {
+                fLower /= 2;
+            }
+
+            upper = next;
+            fUpper = fNext;
+        }
+
+        return Math.exp(lower / 2);
+    }
+
+    private double f(double x, double phi, double v, double delta, double a) {
+        double ex = Math.exp(x);
+        double denominator = phi * phi + v + ex;
+        return ex * (delta * delta - phi * phi - v - ex) / (2 * denominator * denominator) - (x - a) / (tau * tau);
+    }
+
+}
@@ -0,0 +1,43 @@
+package game;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import server.ClientInfo;
+
+// Outcome of a ranked game as the rating engines see it: the players'
+// names per team and which team won
+public class MatchResult {
+
+    public final List<List<String>> teams;
+    public final int winningTeam;
+    public final long finishedAt;
+
+    public MatchResult(List<List<String>> teams, int winningTeam, long finishedAt) {
+        this.teams = teams;
+        this.winningTeam = winningTeam;
+        this.finishedAt = finishedAt;
+    }
+
+    public static MatchResult of(Game game) {
+        List<List<String>> teams = new ArrayList<>();
+        int winningTeam = 0;
+
+        for (List<ClientInfo> team: game.getTeams()) {
+            if (team == game.winningTeam) winningTeam = teams.size();
+
+            List<String> names = new ArrayList<>(team.size());
+            for (ClientInfo player: team) names.add(player.name);
+            teams.add(names);
+        }
+
+        return new MatchResult(teams, winningTeam, System.currentTimeMillis());
+    }
+
+    public List<String> players() {
+        List<String> players = new ArrayList<>();
+        for (List<String> team: teams) players.addAll(team);
+        return players;
+    }
+
+}
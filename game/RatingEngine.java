@@ -0,0 +1,13 @@
+package game;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+public interface RatingEngine {
+
+    // New ratings of every player of the batch. Games are taken in order and
+    // current gives the rating of a player before the batch.
+    Map<String, Integer> rate(List<MatchResult> results, ToIntFunction<String> current);
+
+}
@@ -0,0 +1,139 @@
+package game;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Recomputes every rating from the match history. Players that never met,
+// directly or through common opponents, don't affect each other, so the
+// history is split into the connected components of the "played together"
+// graph (union-find over the players of each game) and the components are
+// replayed in parallel on a fork-join pool, each one in its original order.
+public class RatingReplay {
+
+    private static int GAMES_PER_TASK = 4096;
+
+    private final RatingEngine engine;
+    private final int baseRating;
+
+    // the engine should be a fresh one, since it sees every game again
+    public RatingReplay(RatingEngine engine, int baseRating) {
+        this.engine = engine;
+        this.baseRating = baseRating;
+    }
+
+    public Map<String, Integer> replay(List<MatchResult> history, ForkJoinPool pool) {
+        List<List<MatchResult>> components = partition(history);
+
+        Map<String, Integer> ratings = new ConcurrentHashMap<>();
+        pool.invoke(new ReplayTask(components, 0, components.size(), ratings));
+
+        System.out.println("[GAME] - Replayed " + history.size() + " games in " + components.size() + " independent groups");
+        return ratings;
+    }
+
+    private List<List<MatchResult>> partition(List<MatchResult> history) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[] parent = new int[1024];
+        int[] firstPlayer = new int[history.size()];
+
+        for (int game = 0; game < history.size(); game++) {
+            int first = -1;
+            for (List<String> team: history.get(game).teams) {
+                for (String player: team) {
+
+                    Integer id = ids.get(player);
+                    if (id == null) {
+                        id = ids.size();
+                        ids.put(player, id);
+                        if (id == parent.length) parent = Arrays.copyOf(parent, id * 2);
+                        parent[id] = id;
+                    }
+
+                    if (first < 0) first = id;
+                    else union(parent, first, id);
+
+                }
+            }
+            firstPlayer[game] = first;
+        }
+
+        Map<Integer, List<MatchResult>> byRoot = new HashMap<>();
+        List<List<MatchResult>> components = new ArrayList<>();
+        for (int game = 0; game < history.size(); game++) {
+            int root = find(parent, firstPlayer[game]);
+
+            List<MatchResult> component = byRoot.get(root);
+            if (component == null) {
+                component = new ArrayList<>();
+                byRoot.put(root, component);
+                components.add(component);
+            }
+            component.add(history.get(game));
+        }
+
+        return components;
+    }
+
+    private static int find(int[] parent, int id) {
+        while (parent[id] != id) {
+            // path halving
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) parent[rootB] = rootA;
+    }
+
+    private class ReplayTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<MatchResult>> components;
+        private final int from;
+        private final int to;
+        private final Map<String, Integer> ratings;
+
+        ReplayTask(List<List<MatchResult>> components, int from, int to, Map<String, Integer> ratings) {
+            this.components = components;
+            this.from = from;
+            this.to = to;
+            this.ratings = ratings;
+        }
+
+        @Override
+        protected void compute() {
+            int games = 0;
+            for (int i = from; i < to; i++) games += components.get(i).size();
+
+            if (to - from <= 1 || games <= GAMES_PER_TASK) {
+                for (int i = from; i < to; i++) replayComponent(components.get(i));
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new ReplayTask(components, from, middle, ratings),
+                      new ReplayTask(components, middle, to, ratings));
+        }
+
+        private void replayComponent(List<MatchResult> component) {
+            Map<String, Integer> local = new HashMap<>();
+
+            for (MatchResult result: component) {
+                local.putAll(engine.rate(List.of(result), player -> local.getOrDefault(player, baseRating)));
+            }
+
+            ratings.putAll(local);
+        }
+    }
+
+}
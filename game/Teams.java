@@ -0,0 +1,44 @@
+package game;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import server.ClientInfo;
+
+public class Teams {
+
+    // Snake draft by Elo: best player to team 1, next to team 2, ... then
+    // back from the last team, so every team gets one pick from each round
+    // and the strongest team is never more than one round ahead.
+    public static List<List<ClientInfo>> snakeDraft(List<ClientInfo> players, int teamCount) {
+        List<ClientInfo> sorted = new ArrayList<>(players);
+        sorted.sort(Comparator.comparingInt((ClientInfo player) -> player.elo).reversed());
+
+        List<List<ClientInfo>> teams = new ArrayList<>(teamCount);
+        for (int i = 0; i < teamCount; i++) teams.add(new ArrayList<>());
+
+        for (int pick = 0; pick < sorted.size(); pick++) {
+            int round = pick / teamCount;
+            int slot = pick % teamCount;
+            int team = round % 2 == 0 ? slot : teamCount - 1 - slot;
+            teams.get(team).add(sorted.get(pick));
+        }
+
+        return teams;
+    }
+
+    // Every player on a team of their own
+    public static List<List<ClientInfo>> solo(List<ClientInfo> players) {
+        List<List<ClientInfo>> teams = new ArrayList<>(players.size());
+        for (ClientInfo player: players) teams.add(List.of(player));
+        return teams;
+    }
+
+    public static int totalElo(List<ClientInfo> team) {
+        int total = 0;
+        for (ClientInfo player: team) total += player.elo;
+        return total;
+    }
+
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import utils.Histogram;
+
+// Bounded executor for password hashing. Work runs here and its result is
+// handed back to the event loop that owns the connection, so a burst of
+// logins never stalls the selector threads.
+public class AuthStage {
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder hashes;
+    private final LongAdder hashNanos;
+    private final AtomicLong maxHashNanos;
+    private final LongAdder rejected;
+    private final Histogram latency;
+
+    public AuthStage(int threads, int queueCapacity, ThreadFactory threadFactory) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+        this.hashes = new LongAdder();
+        this.hashNanos = new LongAdder();
+        this.maxHashNanos = new AtomicLong();
+        this.rejected = new LongAdder();
+        this.latency = new Histogram();
+    }
+
+    // Returns false if the queue is full; the caller should answer the client
+    public <T> boolean submit(EventLoop loop, Supplier<T> work, Consumer<T> onResult) {
+        long submitted = System.nanoTime();
+        try {
+
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                T result = work.get();
+                record(System.nanoTime() - start);
+
+                loop.execute(() -> {
+                    latency.record((System.nanoTime() - submitted) / 1000);
+                    onResult.accept(result);
+                });
+            });
+            return true;
+
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    private void record(long nanos) {
+        hashes.increment();
+        hashNanos.add(nanos);
+        maxHashNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // microseconds from submit until the result is back on the event loop
+    public Histogram getLatency() { return latency; }
+
+    public int getQueueDepth() { return executor.getQueue().size(); }
+
+    public int getActiveCount() { return executor.getActiveCount(); }
+
+    public long getHashCount() { return hashes.sum(); }
+
+    public long getRejectedCount() { return rejected.sum(); }
+
+    public double getAverageHashMillis() {
+        long count = hashes.sum();
+        return count == 0 ? 0 : hashNanos.sum() / (count * 1e6);
+    }
+
+    public double getMaxHashMillis() { return maxHashNanos.get() / 1e6; }
+
+    @Override
+    public String toString() {
+        return String.format("queue=%d active=%d hashes=%d rejected=%d avg=%.1fms max=%.1fms",
+                             getQueueDepth(), getActiveCount(), getHashCount(), getRejectedCount(),
+                             getAverageHashMillis(), getMaxHashMillis());
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
@@ -2,13 +2,18 @@ package server;
 
 import java.util.UUID;
 
+import game.Game;
+
 public class ClientInfo {
 
     private ServerCommunicator communicator;
     private long startTime;
     private String token;
     
+    public volatile Game game;
+    public volatile TimerWheel.Timeout disconnectTimeout;
     public long disconnectedTime;
+    public volatile long queuedAt;
     public String name;
     public int elo;
 
@@ -28,6 +33,11 @@ public class ClientInfo {
         return ((int) (currTime - startTime))/1000;
     }
 
+    // seconds since the player last joined a matchmaking queue
+    public int getTimeInQueue() {
+        return (int) ((System.nanoTime() - queuedAt) / 1000000000L);
+    }
+
     public int getTimeSinceDisconnect() {
         long currTime = System.currentTimeMillis();
         return ((int) (currTime - disconnectedTime))/1000;
@@ -43,4 +53,7 @@ public class ClientInfo {
 
     @Override
     public boolean equals(Object obj) { return this.name.equals(((ClientInfo) obj).name); }
+
+    @Override
+    public int hashCode() { return name.hashCode(); }
 }
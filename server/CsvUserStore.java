@@ -0,0 +1,180 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CsvUserStore implements UserStore {
+
+    private static long HASH_FLUSH_DELAY = 5000;
+
+    private final Path path;
+    private final Map<String, UserRecord> users;
+    private final List<UserRecord> records;
+    private final EloLog eloLog;
+    private final AtomicBoolean hashesDirty;
+
+    public CsvUserStore(String db) throws IOException {
+        this.path = Path.of(db);
+        this.users = new ConcurrentHashMap<>();
+        this.records = new ArrayList<>();
+        this.hashesDirty = new AtomicBoolean(false);
+        this.eloLog = new EloLog(Path.of(db + ".wal"), this::writeSnapshot);
+
+        load();
+        eloLog.replay((id, elo) -> {
+            if (id >= 0 && id < records.size()) records.get(id).elo = elo;
+        });
+        eloLog.start();
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(path)) {
+            Files.createFile(path);
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                if (line.isBlank()) continue;
+
+                UserRecord record = UserRecord.fromCsv(records.size(), line);
+                if (record == null) {
+                    System.err.println("[SERVER] - Skipping malformed db line: " + line);
+                    continue;
+                }
+
+                records.add(record);
+                users.put(record.name, record);
+            }
+
+        }
+
+        System.out.println("[SERVER] - Loaded " + records.size() + " users from " + path);
+    }
+
+    @Override
+    public UserRecord get(String name) {
+        return users.get(name);
+    }
+
+    @Override
+    public synchronized UserRecord get(int id) {
+        return id >= 0 && id < records.size() ? records.get(id) : null;
+    }
+
+    @Override
+    public synchronized UserRecord register(String name, String passwordHash, int elo) throws IOException {
+        if (users.containsKey(name)) return null;
+
+        UserRecord record = new UserRecord(records.size(), name, passwordHash, elo);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            writer.write(record.toCsv());
+            writer.newLine();
+        }
+
+        records.add(record);
+        users.put(name, record);
+        return record;
+    }
+
+    @Override
+    public void updateElo(Map<String, Integer> changes) throws IOException {
+        int[] ids = new int[changes.size()];
+        int[] elos = new int[changes.size()];
+        int count = 0;
+
+        for (Map.Entry<String, Integer> change: changes.entrySet()) {
+            UserRecord record = users.get(change.getKey());
+            if (record == null) continue;
+
+            record.elo = change.getValue();
+            ids[count] = record.id;
+            elos[count] = record.elo;
+            count++;
+        }
+
+        if (count < ids.length) {
+            ids = Arrays.copyOf(ids, count);
+            elos = Arrays.copyOf(elos, count);
+        }
+
+        try {
+            eloLog.append(ids, elos).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // After a cost change every login upgrades a hash, so the upgrades are
+    // collected for HASH_FLUSH_DELAY ms and written with a single snapshot
+    // (an Elo log compaction in between writes them too). A lost upgrade
+    // is harmless: the old hash still verifies and is upgraded again.
+    @Override
+    public void updatePasswordHash(String name, String passwordHash) throws IOException {
+        UserRecord record = users.get(name);
+        if (record == null) return;
+
+        record.passwordHash = passwordHash;
+        if (!hashesDirty.compareAndSet(false, true)) return;
+
+        Thread flush = new Thread(() -> {
+            try {
+                Thread.sleep(HASH_FLUSH_DELAY);
+                hashesDirty.set(false);
+                writeSnapshot();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "csv-hash-flush");
+        flush.setDaemon(true);
+        flush.start();
+    }
+
+    private synchronized void writeSnapshot() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (UserRecord record: records) {
+                writer.write(record.toCsv());
+                writer.newLine();
+            }
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Stops the Elo log writer, and writes hash upgrades still waiting for their flush
+    public void close() throws IOException {
+        eloLog.close();
+        if (hashesDirty.getAndSet(false)) writeSnapshot();
+    }
+
+    synchronized List<UserRecord> records() {
+        return new ArrayList<>(records);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+}
@@ -0,0 +1,274 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+// Append-only log of Elo updates. Each record stores the user id and its new
+// absolute Elo, so replaying a record twice is harmless.
+public class EloLog {
+
+    public interface Replayer {
+        void apply(int id, int elo);
+    }
+
+    public interface Snapshotter {
+        void snapshot() throws IOException;
+    }
+
+    private static final int RECORD_SIZE = 12;
+    private static int COMPACT_THRESHOLD = 4096;
+    private static long COMPACT_RETRY_DELAY = 10000;
+
+    private final Path logPath;
+    private final Path compactingPath;
+    private final Snapshotter snapshotter;
+    private final BlockingQueue<Pending> pending;
+
+    private FileChannel channel;
+    private ByteBuffer writeBuffer;
+    private int recordsInLog;
+    private Thread writer;
+    private volatile Thread compaction;
+    private volatile long compactionFailedAt;
+    private IOException failure;
+
+    public EloLog(Path logPath, Snapshotter snapshotter) {
+        this.logPath = logPath;
+        this.compactingPath = logPath.resolveSibling(logPath.getFileName() + ".1");
+        this.snapshotter = snapshotter;
+        this.pending = new LinkedBlockingQueue<>();
+        this.writeBuffer = ByteBuffer.allocateDirect(RECORD_SIZE * 256);
+    }
+
+    // Replays a log left behind by an unfinished compaction and then the live
+    // log, truncating a torn record at the tail if the last write was cut short.
+    public void replay(Replayer replayer) throws IOException {
+        boolean unfinishedCompaction = Files.exists(compactingPath);
+        if (unfinishedCompaction) replayFile(compactingPath, replayer);
+
+        long validBytes = Files.exists(logPath) ? replayFile(logPath, replayer) : 0;
+
+        this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validBytes);
+        channel.position(validBytes);
+        this.recordsInLog = (int) (validBytes / RECORD_SIZE);
+
+        if (unfinishedCompaction) {
+            snapshotter.snapshot();
+            Files.deleteIfExists(compactingPath);
+        }
+
+        if (recordsInLog > 0) {
+            System.out.println("[SERVER] - Replayed " + recordsInLog + " Elo log records");
+        }
+    }
+
+    private long replayFile(Path path, Replayer replayer) throws IOException {
+        long validBytes = 0;
+
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            while (in.read(buffer) > 0) {
+
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+
+                    int id = buffer.getInt();
+                    int elo = buffer.getInt();
+                    int checksum = buffer.getInt();
+
+                    if (checksum != checksum(id, elo)) return validBytes;
+
+                    replayer.apply(id, elo);
+                    validBytes += RECORD_SIZE;
+                }
+                buffer.compact();
+
+            }
+
+        }
+
+        return validBytes;
+    }
+
+    public void start() {
+        this.writer = new Thread(this::runWriter, "elo-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Stops the writer and closes the log. Appends still waiting are failed.
+    public void close() throws IOException {
+        try {
+            if (writer != null) {
+                writer.interrupt();
+                writer.join();
+            }
+            Thread running = compaction;
+            if (running != null) running.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Pending> left = new ArrayList<>();
+        pending.drainTo(left);
+        for (Pending entry: left) entry.done.completeExceptionally(new IOException("Elo log closed"));
+
+        if (channel != null) channel.close();
+    }
+
+    // Completes once the records are on disk. Appends that arrive while a
+    // batch is being synced are written and synced together.
+    public CompletableFuture<Void> append(int[] ids, int[] elos) {
+        Pending entry = new Pending(ids, elos);
+        pending.add(entry);
+        return entry.done;
+    }
+
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>();
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+
+            long start = -1;
+            try {
+
+                if (failure != null) throw failure;
+
+                start = channel.position();
+                int records = writeBatch(batch);
+                channel.force(false);
+                recordsInLog += records;
+
+                for (Pending entry: batch) entry.done.complete(null);
+
+            } catch (IOException e) {
+                if (start >= 0) rollBack(start);
+                for (Pending entry: batch) entry.done.completeExceptionally(e);
+                batch.clear();
+                continue;
+            }
+
+            batch.clear();
+
+            try {
+                if (recordsInLog >= COMPACT_THRESHOLD) rotate();
+            } catch (IOException e) {
+                System.err.println("[SERVER] - Elo log rotation failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Cuts off whatever part of a failed batch reached the file. Otherwise
+    // replay would stop at its bad checksum and drop every later record,
+    // including ones that were acknowledged.
+    private void rollBack(long start) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        } catch (IOException e) {
+            // can't tell what is on disk any more, so acknowledge nothing from now on
+            System.err.println("[SERVER] - Elo log can't recover from a failed write: " + e.getMessage());
+            failure = new IOException("Elo log is unusable after a failed write", e);
+        }
+    }
+
+    private int writeBatch(List<Pending> batch) throws IOException {
+        int records = 0;
+        for (Pending entry: batch) records += entry.ids.length;
+
+        if (writeBuffer.capacity() < records * RECORD_SIZE) {
+            writeBuffer = ByteBuffer.allocateDirect(records * RECORD_SIZE);
+        }
+
+        writeBuffer.clear();
+        for (Pending entry: batch) {
+            for (int i = 0; i < entry.ids.length; i++) {
+                writeBuffer.putInt(entry.ids[i]);
+                writeBuffer.putInt(entry.elos[i]);
+                writeBuffer.putInt(checksum(entry.ids[i], entry.elos[i]));
+            }
+        }
+        writeBuffer.flip();
+
+        while (writeBuffer.hasRemaining()) channel.write(writeBuffer);
+        return records;
+    }
+
+    // Moves the live log aside and folds it into a new snapshot in the
+    // background. The snapshot is taken from memory, which already holds
+    // every update in the moved log. If a compaction failed its log is still
+    // there, and the compaction is retried after COMPACT_RETRY_DELAY.
+    private void rotate() throws IOException {
+        if (compaction != null && compaction.isAlive()) return;
+
+        if (Files.exists(compactingPath)) {
+            if (System.currentTimeMillis() - compactionFailedAt < COMPACT_RETRY_DELAY) return;
+            compact();
+            return;
+        }
+
+        channel.close();
+        try {
+            Files.move(logPath, compactingPath, StandardCopyOption.REPLACE_EXISTING);
+            this.recordsInLog = 0;
+        } finally {
+            this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        compact();
+    }
+
+    private void compact() {
+        this.compaction = new Thread(() -> {
+            try {
+                snapshotter.snapshot();
+                Files.deleteIfExists(compactingPath);
+            } catch (IOException e) {
+                compactionFailedAt = System.currentTimeMillis();
+                System.err.println("[SERVER] - Elo log compaction failed, will retry: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, "elo-log-compaction");
+        compaction.start();
+    }
+
+    private static int checksum(int id, int elo) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(id).putInt(elo).array());
+        return (int) crc.getValue();
+    }
+
+    private static class Pending {
+        final int[] ids;
+        final int[] elos;
+        final CompletableFuture<Void> done;
+
+        Pending(int[] ids, int[] elos) {
+            this.ids = ids;
+            this.elos = elos;
+            this.done = new CompletableFuture<>();
+        }
+    }
+
+}
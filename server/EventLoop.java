@@ -0,0 +1,144 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import utils.Histogram;
+
+public class EventLoop {
+
+    public interface KeyHandler {
+        void handle(EventLoop loop, SelectionKey key) throws IOException;
+    }
+
+    private final Selector selector;
+    private final KeyHandler handler;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean wakeupPending;
+    private final Thread thread;
+    private final Histogram busyTimes;
+
+    public EventLoop(String name, KeyHandler handler) throws IOException {
+        this.selector = Selector.open();
+        this.handler = handler;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.thread = new Thread(this::run, name);
+        this.busyTimes = new Histogram();
+    }
+
+    public String getName() { return thread.getName(); }
+
+    // microseconds spent handling the ready keys of each select()
+    public Histogram getBusyTimes() { return busyTimes; }
+
+    public Selector getSelector() { return selector; }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void shutdown() {
+        thread.interrupt();
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // Selector.register blocks while another thread sits in select(), so
+    // registrations from matchmakers or the Elo handler are queued and run here
+    public void register(SelectableChannel channel, int ops, Consumer<SelectionKey> onRegistered) {
+        execute(() -> {
+            try {
+
+                SelectionKey key;
+                try {
+                    key = channel.register(selector, ops);
+                } catch (CancelledKeyException e) {
+                    // the previous key of this channel was cancelled but not yet flushed
+                    selector.selectNow();
+                    key = channel.register(selector, ops);
+                }
+
+                if (onRegistered != null) onRegistered.accept(key);
+
+            } catch (ClosedChannelException e) {
+                System.err.println("[SERVER] - Tried to register a closed channel");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void runTasks() {
+        wakeupPending.set(false);
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try { task.run(); }
+            catch (RuntimeException e) { e.printStackTrace(); }
+        }
+    }
+
+    private void run() {
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                runTasks();
+
+                if (tasks.isEmpty() && selector.selectedKeys().isEmpty()) selector.select();
+                else selector.selectNow();
+
+                long start = System.nanoTime();
+                boolean ready = !selector.selectedKeys().isEmpty();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid()) continue;
+
+                    try {
+                        handler.handle(this, key);
+                    } catch (CancelledKeyException e) {
+                        continue;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        key.cancel();
+                    }
+                }
+
+                if (ready) busyTimes.record((System.nanoTime() - start) / 1000);
+
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try { selector.close(); }
+        catch (IOException e) { e.printStackTrace(); }
+    }
+
+}
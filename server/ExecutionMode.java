@@ -0,0 +1,45 @@
+package server;
+
+import java.util.concurrent.ThreadFactory;
+
+public enum ExecutionMode {
+
+    // games are state machines driven by the event loops and the game timer
+    EVENT,
+    // each game blocks a worker of the fixed ThreadPool for its whole duration
+    POOL,
+    // each game and each login/register runs on its own virtual thread
+    VIRTUAL;
+
+    public static ExecutionMode parse(String value) {
+        return ExecutionMode.valueOf(value.trim().toUpperCase());
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual").invoke(null);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively so the server still builds and runs on JDKs
+    // without virtual threads, where it falls back to platform threads.
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+
+        } catch (ReflectiveOperationException e) {
+            System.err.println("[SERVER] - Virtual threads are not available on this JVM, using platform threads");
+            return runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+// Elo ranking kept off-heap, so millions of accounts add no objects for the
+// GC to trace. A Fenwick tree counts the players in every Elo bucket, which
+// gives the rank of an Elo in O(log maxElo). Players in the same bucket are
+// chained in an intrusive doubly linked list indexed by user id, and top-K
+// walks the non-empty buckets from the top, finding each next one through
+// the tree. Elo outside [0, maxElo] is clamped.
+public class Leaderboard {
+
+    private static final int NONE = -1;
+
+    private final int maxElo;
+    private final IntBuffer tree;
+    private final IntBuffer heads;
+    private IntBuffer next;
+    private IntBuffer prev;
+    private IntBuffer bucketOf;
+    private int capacity;
+    private int size;
+
+    public Leaderboard(int maxElo, int initialCapacity) {
+        this.maxElo = maxElo;
+        this.tree = allocate(maxElo + 2, 0);
+        this.heads = allocate(maxElo + 1, NONE);
+        this.capacity = Math.max(initialCapacity, 16);
+        this.next = allocate(capacity, NONE);
+        this.prev = allocate(capacity, NONE);
+        this.bucketOf = allocate(capacity, NONE);
+    }
+
+    private static IntBuffer allocate(int length, int fill) {
+        IntBuffer buffer = ByteBuffer.allocateDirect(length * Integer.BYTES).asIntBuffer();
+        if (fill != 0) for (int i = 0; i < length; i++) buffer.put(i, fill);
+        return buffer;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id < capacity) return;
+
+        int newCapacity = capacity;
+        while (newCapacity <= id) newCapacity *= 2;
+
+        this.next = grow(next, newCapacity);
+        this.prev = grow(prev, newCapacity);
+        this.bucketOf = grow(bucketOf, newCapacity);
+        this.capacity = newCapacity;
+    }
+
+    private IntBuffer grow(IntBuffer old, int newCapacity) {
+        IntBuffer buffer = allocate(newCapacity, NONE);
+        for (int i = 0; i < capacity; i++) buffer.put(i, old.get(i));
+        return buffer;
+    }
+
+    private int bucket(int elo) {
+        return Math.min(Math.max(elo, 0), maxElo);
+    }
+
+    // Adds the user or moves them to their new Elo
+    public synchronized void update(int id, int elo) {
+        ensureCapacity(id);
+
+        int bucket = bucket(elo);
+        int old = bucketOf.get(id);
+        if (old == bucket) return;
+
+        if (old != NONE) unlink(id, old);
+        else size++;
+
+        link(id, bucket);
+    }
+
+    public synchronized void remove(int id) {
+        if (id >= capacity || bucketOf.get(id) == NONE) return;
+
+        unlink(id, bucketOf.get(id));
+        size--;
+    }
+
+    private void link(int id, int bucket) {
+        int head = heads.get(bucket);
+
+        next.put(id, head);
+        prev.put(id, NONE);
+        if (head != NONE) prev.put(head, id);
+        heads.put(bucket, id);
+
+        bucketOf.put(id, bucket);
+        add(bucket, 1);
+    }
+
+    private void unlink(int id, int bucket) {
+        int before = prev.get(id);
+        int after = next.get(id);
+
+        if (before != NONE) next.put(before, after);
+        else heads.put(bucket, after);
+        if (after != NONE) prev.put(after, before);
+
+        bucketOf.put(id, NONE);
+        add(bucket, -1);
+    }
+
+    // Fenwick tree over buckets, 1-based inside the tree
+    private void add(int bucket, int delta) {
+        for (int i = bucket + 1; i < tree.capacity(); i += i & -i) tree.put(i, tree.get(i) + delta);
+    }
+
+    // players with Elo bucket <= bucket
+    private int countUpTo(int bucket) {
+        int count = 0;
+        for (int i = bucket + 1; i > 0; i -= i & -i) count += tree.get(i);
+        return count;
+    }
+
+    // lowest bucket whose running count reaches target (1 <= target <= size)
+    private int findByCount(int target) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(tree.capacity() - 1); step > 0; step >>= 1) {
+            int i = position + step;
+            if (i < tree.capacity() && tree.get(i) < target) {
+                position = i;
+                target -= tree.get(i);
+            }
+        }
+        return position;
+    }
+
+    // 1 + players with a higher Elo, so ties share a rank; 0 if not ranked
+    public synchronized int rank(int id) {
+        if (id >= capacity || bucketOf.get(id) == NONE) return 0;
+        return 1 + size - countUpTo(bucketOf.get(id));
+    }
+
+    // Elo the user is ranked on, -1 if not ranked
+    public synchronized int elo(int id) {
+        if (id >= capacity) return NONE;
+        return bucketOf.get(id);
+    }
+
+    // Ids of the k best players, highest Elo first
+    public synchronized int[] top(int k) {
+        int[] ids = new int[Math.min(k, size)];
+        int found = 0;
+
+        int below = size;
+        while (found < ids.length && below > 0) {
+
+            int bucket = findByCount(below);
+            for (int id = heads.get(bucket); id != NONE && found < ids.length; id = next.get(id)) {
+                ids[found++] = id;
+            }
+            below = countUpTo(bucket - 1);
+
+        }
+
+        return ids;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+}
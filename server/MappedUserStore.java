@@ -0,0 +1,263 @@
+package server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// User database as fixed-width binary records in a memory-mapped file, so
+// every field can be patched in place. Layout of a record:
+//
+//   0  elo         8 bytes, a single aligned store
+//   8  iterations  4 bytes
+//  12  name, salt and hash lengths, 1 byte each, then 1 spare byte
+//  16  name        up to 32 bytes of UTF-8
+//  48  salt        up to 32 bytes
+//  80  hash        up to 48 bytes
+//
+// The header holds a magic number, the record size and the record count,
+// which is bumped only after a new record is on disk. The name index is
+// rebuilt in memory on load.
+public class MappedUserStore implements UserStore {
+
+    private static final int MAGIC = 0x52505355;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 128;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int ELO = 0;
+    private static final int ITERATIONS = 8;
+    private static final int NAME_LENGTH = 12;
+    private static final int SALT_LENGTH = 13;
+    private static final int HASH_LENGTH = 14;
+    private static final int NAME = 16;
+    private static final int SALT = 48;
+    private static final int HASH = 80;
+    private static final int MAX_NAME = SALT - NAME;
+    private static final int MAX_SALT = HASH - SALT;
+    private static final int MAX_HASH = RECORD_SIZE - HASH;
+
+    private final Path path;
+    private final Map<String, UserRecord> users;
+    private final List<UserRecord> records;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int count;
+
+    public MappedUserStore(String db) throws IOException {
+        this.path = Path.of(db);
+        this.users = new ConcurrentHashMap<>();
+        this.records = new ArrayList<>();
+
+        boolean exists = Files.exists(path);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (!exists || channel.size() == 0) {
+            map(HEADER_SIZE + (long) RECORD_SIZE * INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, RECORD_SIZE);
+            buffer.putInt(8, 0);
+            buffer.force(0, HEADER_SIZE);
+        } else {
+            map(channel.size());
+            load();
+        }
+    }
+
+    // One-shot conversion of the CSV database (with its Elo log applied) into a new mapped file.
+    // The import goes to a temporary file that only replaces db once every user made it.
+    public static MappedUserStore importCsv(String csv, String db) throws IOException {
+        Path target = Path.of(db);
+        if (Files.exists(target)) throw new IOException(db + " already exists");
+
+        CsvUserStore source = new CsvUserStore(csv);
+        int imported;
+        try {
+
+            Path temporary = Path.of(db + ".tmp");
+            Files.deleteIfExists(temporary);
+
+            MappedUserStore store = new MappedUserStore(temporary.toString());
+            try {
+
+                for (UserRecord record: source.records()) {
+                    store.register(record.name, record.passwordHash, record.elo);
+                }
+                imported = store.size();
+                store.close();
+
+            } catch (IOException | RuntimeException e) {
+                store.close();
+                Files.deleteIfExists(temporary);
+                throw new IOException("Failed to import " + csv + " into " + db + ": " + e.getMessage(), e);
+            }
+
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            // its Elo log writer would otherwise keep running on the CSV's log
+            source.close();
+        }
+
+        System.out.println("[SERVER] - Imported " + imported + " users from " + csv + " into " + db);
+        return new MappedUserStore(db);
+    }
+
+    private void map(long size) throws IOException {
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void load() throws IOException {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != RECORD_SIZE) {
+            throw new IOException(path + " is not a user database");
+        }
+
+        int stored = buffer.getInt(8);
+        if (HEADER_SIZE + (long) stored * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException(path + " is truncated");
+        }
+
+        for (int id = 0; id < stored; id++) {
+            UserRecord record = readRecord(id);
+            records.add(record);
+            users.put(record.name, record);
+        }
+        this.count = stored;
+
+        System.out.println("[SERVER] - Loaded " + count + " users from " + path);
+    }
+
+    private UserRecord readRecord(int id) {
+        int offset = offset(id);
+
+        String name = new String(bytes(offset + NAME, buffer.get(offset + NAME_LENGTH)), StandardCharsets.UTF_8);
+        byte[] salt = bytes(offset + SALT, buffer.get(offset + SALT_LENGTH));
+        byte[] hash = bytes(offset + HASH, buffer.get(offset + HASH_LENGTH));
+        int iterations = buffer.getInt(offset + ITERATIONS);
+        int elo = (int) buffer.getLong(offset + ELO);
+
+        String passwordHash = iterations + ":" + Base64.getEncoder().encodeToString(salt) + ":" + Base64.getEncoder().encodeToString(hash);
+        return new UserRecord(id, name, passwordHash, elo);
+    }
+
+    private byte[] bytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    private static int offset(int id) {
+        return HEADER_SIZE + id * RECORD_SIZE;
+    }
+
+    @Override
+    public UserRecord get(String name) {
+        return users.get(name);
+    }
+
+    @Override
+    public synchronized UserRecord get(int id) {
+        return id >= 0 && id < records.size() ? records.get(id) : null;
+    }
+
+    @Override
+    public synchronized UserRecord register(String name, String passwordHash, int elo) throws IOException {
+        if (users.containsKey(name)) return null;
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME) throw new IOException("Name too long for the user database: " + name);
+
+        ensureCapacity(count + 1);
+
+        int offset = offset(count);
+        buffer.put(offset + NAME_LENGTH, (byte) nameBytes.length);
+        buffer.put(offset + NAME, nameBytes);
+        writePasswordHash(offset, passwordHash);
+        buffer.putLong(offset + ELO, elo);
+        buffer.force(offset, RECORD_SIZE);
+
+        // the record only counts once it is on disk
+        buffer.putInt(8, count + 1);
+        buffer.force(8, 4);
+
+        UserRecord record = new UserRecord(count, name, passwordHash, elo);
+        count++;
+        records.add(record);
+        users.put(name, record);
+        return record;
+    }
+
+    private void writePasswordHash(int offset, String passwordHash) throws IOException {
+        String[] parts = passwordHash.split(":");
+        if (parts.length != 3) throw new IOException("Unknown password hash format");
+
+        byte[] salt = Base64.getDecoder().decode(parts[1]);
+        byte[] hash = Base64.getDecoder().decode(parts[2]);
+        if (salt.length > MAX_SALT || hash.length > MAX_HASH) throw new IOException("Password hash too long for the user database");
+
+        buffer.putInt(offset + ITERATIONS, Integer.parseInt(parts[0]));
+        buffer.put(offset + SALT_LENGTH, (byte) salt.length);
+        buffer.put(offset + SALT, salt);
+        buffer.put(offset + HASH_LENGTH, (byte) hash.length);
+        buffer.put(offset + HASH, hash);
+    }
+
+    private void ensureCapacity(int records) throws IOException {
+        long needed = HEADER_SIZE + (long) records * RECORD_SIZE;
+        if (needed <= buffer.capacity()) return;
+
+        long size = buffer.capacity();
+        while (size < needed) size *= 2;
+        if (size > Integer.MAX_VALUE) throw new IOException("User database is full");
+
+        map(size);
+    }
+
+    // Each change is an 8-byte store into the record and a flush of that page
+    @Override
+    public synchronized void updateElo(Map<String, Integer> changes) throws IOException {
+        for (Map.Entry<String, Integer> change: changes.entrySet()) {
+
+            UserRecord record = users.get(change.getKey());
+            if (record == null) continue;
+
+            int offset = offset(record.id);
+            record.elo = change.getValue();
+            buffer.putLong(offset + ELO, record.elo);
+            buffer.force(offset + ELO, 8);
+
+        }
+    }
+
+    @Override
+    public synchronized void updatePasswordHash(String name, String passwordHash) throws IOException {
+        UserRecord record = users.get(name);
+        if (record == null) return;
+
+        int offset = offset(record.id);
+        writePasswordHash(offset, passwordHash);
+        buffer.force(offset, RECORD_SIZE);
+
+        record.passwordHash = passwordHash;
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+}
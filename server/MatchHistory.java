@@ -0,0 +1,498 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+// Append-only history of finished games, split into segment files of about
+// SEGMENT_SIZE bytes. Records are framed as length, CRC32 and the encoded
+// MatchRecord. Every BLOCK_RECORDS records the writer adds an entry to the
+// segment's sparse index (first and last offset, oldest and newest finish
+// time of the block), so a time range scan only reads the blocks that can
+// hold matching games. Appends are queued and written in batches by a
+// single thread; readers stream one record at a time.
+public class MatchHistory {
+
+    private static long SEGMENT_SIZE = 8 << 20;
+    private static int BLOCK_RECORDS = 512;
+    private static final int RECORD_HEADER = 8;
+    private static final int INDEX_ENTRY = 24;
+    private static final int READ_BUFFER = 64 * 1024;
+
+    private final Path directory;
+    private final BlockingQueue<MatchRecord> pending;
+    private final List<Segment> segments;
+    private final CRC32 crc;
+
+    private Segment current;
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private ByteBuffer writeBuffer;
+    private ByteBuffer indexBuffer;
+    private Thread writer;
+
+    // A run of records in a segment, with the range of their finish times
+    private static class Block {
+        final long start;
+        final long end;
+        final long oldest;
+        final long newest;
+
+        Block(long start, long end, long oldest, long newest) {
+            this.start = start;
+            this.end = end;
+            this.oldest = oldest;
+            this.newest = newest;
+        }
+    }
+
+    private static class Segment {
+        final Path log;
+        final Path index;
+        final List<Block> blocks;
+        volatile long committed;
+
+        // block being filled, only touched by the writer
+        long openStart;
+        long openOldest;
+        long openNewest;
+        int openRecords;
+
+        Segment(Path log, Path index) {
+            this.log = log;
+            this.index = index;
+            this.blocks = new CopyOnWriteArrayList<>();
+        }
+
+        long indexedEnd() {
+            return blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).end;
+        }
+    }
+
+    public MatchHistory(Path directory) throws IOException {
+        this.directory = directory;
+        this.pending = new LinkedBlockingQueue<>();
+        this.segments = new CopyOnWriteArrayList<>();
+        this.crc = new CRC32();
+        this.writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        this.indexBuffer = ByteBuffer.allocate(INDEX_ENTRY * 16);
+
+        Files.createDirectories(directory);
+        open();
+    }
+
+    private void open() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "history-*.log")) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+            }
+        }
+        numbers.sort(null);
+
+        for (int number: numbers) {
+            Segment segment = segment(number);
+            loadIndex(segment);
+            segment.committed = Files.size(segment.log);
+            segments.add(segment);
+        }
+
+        if (segments.isEmpty()) {
+            startSegment(1);
+            return;
+        }
+
+        // only the last segment can have unindexed records or a torn tail
+        this.current = segments.get(segments.size() - 1);
+        this.channel = FileChannel.open(current.log, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.indexChannel = FileChannel.open(current.index, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recoverTail();
+
+        long size = 0;
+        for (Segment segment: segments) size += segment.committed;
+        System.out.println("[SERVER] - Opened match history: " + segments.size() + " segments, " + size + " bytes");
+    }
+
+    private Segment segment(int number) {
+        String name = String.format("history-%06d", number);
+        return new Segment(directory.resolve(name + ".log"), directory.resolve(name + ".idx"));
+    }
+
+    private int segmentNumber(Segment segment) {
+        String name = segment.log.getFileName().toString();
+        return Integer.parseInt(name.substring(8, name.length() - 4));
+    }
+
+    private void loadIndex(Segment segment) throws IOException {
+        if (!Files.exists(segment.index)) return;
+
+        long logSize = Files.size(segment.log);
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(segment.index));
+        while (entries.remaining() >= INDEX_ENTRY) {
+            Block block = new Block(entries.getInt(), entries.getInt(), entries.getLong(), entries.getLong());
+            if (block.end > logSize) break;
+            segment.blocks.add(block);
+        }
+    }
+
+    private void recoverTail() throws IOException {
+        long position = current.indexedEnd();
+        startBlock(position);
+
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        buffer.flip();
+        channel.position(position);
+
+        while (true) {
+
+            buffer.compact();
+            if (channel.read(buffer) <= 0 && buffer.position() == 0) break;
+            buffer.flip();
+
+            boolean progressed = false;
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || length > buffer.capacity() - RECORD_HEADER) break;
+                if (buffer.remaining() < RECORD_HEADER + length) break;
+
+                int checksum = buffer.getInt(buffer.position() + 4);
+                if (checksum != checksum(buffer, buffer.position() + RECORD_HEADER, length)) break;
+
+                long finishedAt = buffer.getLong(buffer.position() + RECORD_HEADER);
+                buffer.position(buffer.position() + RECORD_HEADER + length);
+                position += RECORD_HEADER + length;
+                track(finishedAt, position);
+                progressed = true;
+            }
+
+            if (!progressed) break;
+
+        }
+
+        channel.truncate(position);
+        channel.position(position);
+        current.committed = position;
+        writeIndexEntries();
+    }
+
+    private void startSegment(int number) throws IOException {
+        Segment segment = segment(number);
+        this.channel = FileChannel.open(segment.log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.indexChannel = FileChannel.open(segment.index, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.current = segment;
+        startBlock(0);
+        segments.add(segment);
+    }
+
+    private void startBlock(long position) {
+        current.openStart = position;
+        current.openOldest = Long.MAX_VALUE;
+        current.openNewest = Long.MIN_VALUE;
+        current.openRecords = 0;
+    }
+
+    // Counts a record ending at position into the open block, closing it when full
+    private void track(long finishedAt, long position) {
+        current.openOldest = Math.min(current.openOldest, finishedAt);
+        current.openNewest = Math.max(current.openNewest, finishedAt);
+        current.openRecords++;
+
+        if (current.openRecords == BLOCK_RECORDS) closeBlock(position);
+    }
+
+    private void closeBlock(long position) {
+        if (current.openRecords == 0) return;
+
+        if (indexBuffer.remaining() < INDEX_ENTRY) {
+            ByteBuffer bigger = ByteBuffer.allocate(indexBuffer.capacity() * 2);
+            indexBuffer.flip();
+            bigger.put(indexBuffer);
+            this.indexBuffer = bigger;
+        }
+
+        indexBuffer.putInt((int) current.openStart);
+        indexBuffer.putInt((int) position);
+        indexBuffer.putLong(current.openOldest);
+        indexBuffer.putLong(current.openNewest);
+
+        startBlock(position);
+    }
+
+    // Index entries are written after the records they cover are on disk
+    private void writeIndexEntries() throws IOException {
+        indexBuffer.flip();
+
+        List<Block> closed = new ArrayList<>();
+        ByteBuffer entries = indexBuffer.duplicate();
+        while (entries.remaining() >= INDEX_ENTRY) {
+            closed.add(new Block(entries.getInt(), entries.getInt(), entries.getLong(), entries.getLong()));
+        }
+
+        while (indexBuffer.hasRemaining()) indexChannel.write(indexBuffer);
+        indexBuffer.clear();
+
+        current.blocks.addAll(closed);
+    }
+
+    public void start() {
+        this.writer = new Thread(this::runWriter, "match-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void append(MatchRecord record) {
+        pending.add(record);
+    }
+
+    private void runWriter() {
+        List<MatchRecord> batch = new ArrayList<>();
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+
+            try {
+
+                writeBatch(batch);
+                if (current.committed >= SEGMENT_SIZE) roll();
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<MatchRecord> batch) throws IOException {
+        int size = 0;
+        for (MatchRecord record: batch) size += RECORD_HEADER + record.encodedSize();
+
+        if (writeBuffer.capacity() < size) writeBuffer = ByteBuffer.allocateDirect(size);
+        writeBuffer.clear();
+
+        long position = current.committed;
+        for (MatchRecord record: batch) {
+
+            int start = writeBuffer.position();
+            writeBuffer.position(start + RECORD_HEADER);
+            record.encode(writeBuffer);
+
+            int length = writeBuffer.position() - start - RECORD_HEADER;
+            writeBuffer.putInt(start, length);
+            writeBuffer.putInt(start + 4, checksum(writeBuffer, start + RECORD_HEADER, length));
+
+            position += RECORD_HEADER + length;
+            track(record.finishedAt, position);
+
+        }
+        writeBuffer.flip();
+
+        while (writeBuffer.hasRemaining()) channel.write(writeBuffer);
+        channel.force(false);
+
+        current.committed = position;
+        writeIndexEntries();
+    }
+
+    // Seals the segment: the open block goes into the index, which is synced
+    private void roll() throws IOException {
+        closeBlock(current.committed);
+        writeIndexEntries();
+        indexChannel.force(false);
+
+        channel.close();
+        indexChannel.close();
+        startSegment(segmentNumber(current) + 1);
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + length).position(offset);
+
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    public Reader readAll() throws IOException {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Games that finished in [fromMillis, toMillis], in the order they were written
+    public Reader read(long fromMillis, long toMillis) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+
+        for (Segment segment: segments) {
+
+            long committed = segment.committed;
+            long indexedEnd = 0;
+
+            for (Block block: segment.blocks) {
+                indexedEnd = block.end;
+                if (block.newest < fromMillis || block.oldest > toMillis) continue;
+                addRange(files, ranges, segment.log, block.start, block.end);
+            }
+
+            // records not indexed yet are always scanned
+            if (committed > indexedEnd) addRange(files, ranges, segment.log, indexedEnd, committed);
+
+        }
+
+        return new Reader(files, ranges, fromMillis, toMillis);
+    }
+
+    private static void addRange(List<Path> files, List<long[]> ranges, Path file, long start, long end) {
+        int last = ranges.size() - 1;
+        if (last >= 0 && files.get(last).equals(file) && ranges.get(last)[1] == start) {
+            ranges.get(last)[1] = end;
+            return;
+        }
+        files.add(file);
+        ranges.add(new long[] { start, end });
+    }
+
+    // Streams records one at a time through a fixed buffer, so memory use
+    // does not depend on the size of the history
+    public static class Reader implements Iterator<MatchRecord>, Closeable {
+
+        private final List<Path> files;
+        private final List<long[]> ranges;
+        private final long fromMillis;
+        private final long toMillis;
+        private final CRC32 crc;
+
+        private int range;
+        private FileChannel channel;
+        private long remaining;
+        private ByteBuffer buffer;
+        private MatchRecord next;
+
+        private Reader(List<Path> files, List<long[]> ranges, long fromMillis, long toMillis) {
+            this.files = files;
+            this.ranges = ranges;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.crc = new CRC32();
+            this.buffer = ByteBuffer.allocate(READ_BUFFER);
+            this.range = -1;
+            buffer.flip();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    MatchRecord record = readRecord();
+                    if (record == null) return false;
+                    if (record.finishedAt >= fromMillis && record.finishedAt <= toMillis) next = record;
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public MatchRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            MatchRecord record = next;
+            next = null;
+            return record;
+        }
+
+        private MatchRecord readRecord() throws IOException {
+            while (true) {
+
+                if (buffer.remaining() >= RECORD_HEADER) {
+                    int length = buffer.getInt(buffer.position());
+                    if (length > buffer.capacity() - RECORD_HEADER) grow(length + RECORD_HEADER);
+
+                    if (buffer.remaining() >= RECORD_HEADER + length) {
+                        int checksum = buffer.getInt(buffer.position() + 4);
+                        buffer.position(buffer.position() + RECORD_HEADER);
+
+                        ByteBuffer payload = buffer.slice();
+                        payload.limit(length);
+                        buffer.position(buffer.position() + length);
+
+                        crc.reset();
+                        crc.update(payload.duplicate());
+                        if (checksum != (int) crc.getValue()) throw new IOException("Corrupt match history record");
+
+                        return MatchRecord.decode(payload);
+                    }
+                }
+
+                if (!fill()) return null;
+
+            }
+        }
+
+        // Reads more of the current range, moving to the next one when it is done
+        private boolean fill() throws IOException {
+            while (remaining == 0) {
+                if (buffer.hasRemaining()) throw new IOException("Truncated match history record");
+                if (!nextRange()) return false;
+            }
+
+            buffer.compact();
+            if (buffer.remaining() > remaining) buffer.limit((int) (buffer.position() + remaining));
+
+            int read = channel.read(buffer);
+            if (read < 0) throw new EOFException("Match history segment ended early");
+            remaining -= read;
+
+            buffer.limit(buffer.capacity());
+            buffer.flip();
+            return true;
+        }
+
+        private boolean nextRange() throws IOException {
+            range++;
+            if (range >= ranges.size()) return false;
+
+            Path file = files.get(range);
+            if (channel == null || range == 0 || !files.get(range - 1).equals(file)) {
+                if (channel != null) channel.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+
+            channel.position(ranges.get(range)[0]);
+            remaining = ranges.get(range)[1] - ranges.get(range)[0];
+            return true;
+        }
+
+        private void grow(int size) {
+            ByteBuffer bigger = ByteBuffer.allocate(size);
+            bigger.put(buffer);
+            bigger.flip();
+            this.buffer = bigger;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+    }
+
+}
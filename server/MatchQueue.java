@@ -0,0 +1,27 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Queue of players waiting for one game mode. Not thread-safe, the
+// matchmaker locks the shard that owns it.
+public interface MatchQueue extends Iterable<ClientInfo> {
+
+    boolean add(ClientInfo client);
+
+    boolean remove(ClientInfo client);
+
+    int size();
+
+    // removes and returns the next group of players, or null if none can be formed yet
+    List<ClientInfo> poll(int playersPerGame);
+
+    // removes and returns every group that can be formed right now
+    default List<List<ClientInfo>> pollAll(int playersPerGame) {
+        List<List<ClientInfo>> groups = new ArrayList<>();
+        List<ClientInfo> group;
+        while (size() >= playersPerGame && (group = poll(playersPerGame)) != null) groups.add(group);
+        return groups;
+    }
+
+}
@@ -0,0 +1,138 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import game.Game;
+import game.MatchResult;
+import utils.FrameCodec;
+
+// One finished game as stored in the match history. Players are kept flat,
+// each with the index of their team and their Elo before and after the game.
+//
+// Encoded as: finishedAt (8), duration (4), ranked (1), winning team (1),
+// player count (2), then per player: team (1), Elo before (4), Elo after (4),
+// name length (2) and the name in UTF-8.
+public class MatchRecord {
+
+    public final long finishedAt;
+    public final int durationMillis;
+    public final boolean ranked;
+    public final int winningTeam;
+    public final String[] players;
+    public final int[] teams;
+    public final int[] eloBefore;
+    public final int[] eloAfter;
+
+    public MatchRecord(long finishedAt, int durationMillis, boolean ranked, int winningTeam,
+                       String[] players, int[] teams, int[] eloBefore, int[] eloAfter) {
+        this.finishedAt = finishedAt;
+        this.durationMillis = durationMillis;
+        this.ranked = ranked;
+        this.winningTeam = winningTeam;
+        this.players = players;
+        this.teams = teams;
+        this.eloBefore = eloBefore;
+        this.eloAfter = eloAfter;
+    }
+
+    public static MatchRecord of(Game game, ToIntFunction<String> before, ToIntFunction<String> after) {
+        int count = game.getPlayers().size();
+        String[] players = new String[count];
+        int[] teams = new int[count];
+        int[] eloBefore = new int[count];
+        int[] eloAfter = new int[count];
+
+        int i = 0;
+        int winningTeam = 0;
+        List<List<ClientInfo>> gameTeams = game.getTeams();
+        for (int team = 0; team < gameTeams.size(); team++) {
+            if (gameTeams.get(team) == game.winningTeam) winningTeam = team;
+
+            for (ClientInfo player: gameTeams.get(team)) {
+                players[i] = player.name;
+                teams[i] = team;
+                eloBefore[i] = before.applyAsInt(player.name);
+                eloAfter[i] = after.applyAsInt(player.name);
+                i++;
+            }
+        }
+
+        // the game keeps nanoTime stamps, the history wall clock time
+        long finishedAt = System.currentTimeMillis() - (System.nanoTime() - game.finishedAt) / 1000000;
+        int duration = (int) ((game.finishedAt - game.startedAt) / 1000000);
+        return new MatchRecord(finishedAt, duration, game.isRanked, winningTeam, players, teams, eloBefore, eloAfter);
+    }
+
+    public MatchResult toResult() {
+        List<List<String>> byTeam = new ArrayList<>();
+        for (int i = 0; i < players.length; i++) {
+            while (byTeam.size() <= teams[i]) byTeam.add(new ArrayList<>());
+            byTeam.get(teams[i]).add(players[i]);
+        }
+        return new MatchResult(byTeam, winningTeam, finishedAt);
+    }
+
+    public int encodedSize() {
+        int size = 16;
+        for (String player: players) size += 11 + FrameCodec.utf8Length(player);
+        return size;
+    }
+
+    public void encode(ByteBuffer out) {
+        out.putLong(finishedAt);
+        out.putInt(durationMillis);
+        out.put((byte) (ranked ? 1 : 0));
+        out.put((byte) winningTeam);
+        out.putShort((short) players.length);
+
+        for (int i = 0; i < players.length; i++) {
+            byte[] name = players[i].getBytes(StandardCharsets.UTF_8);
+            out.put((byte) teams[i]);
+            out.putInt(eloBefore[i]);
+            out.putInt(eloAfter[i]);
+            out.putShort((short) name.length);
+            out.put(name);
+        }
+    }
+
+    public static MatchRecord decode(ByteBuffer in) {
+        long finishedAt = in.getLong();
+        int durationMillis = in.getInt();
+        boolean ranked = in.get() == 1;
+        int winningTeam = in.get();
+        int count = in.getShort();
+
+        String[] players = new String[count];
+        int[] teams = new int[count];
+        int[] eloBefore = new int[count];
+        int[] eloAfter = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            teams[i] = in.get();
+            eloBefore[i] = in.getInt();
+            eloAfter[i] = in.getInt();
+
+            byte[] name = new byte[in.getShort()];
+            in.get(name);
+            players[i] = new String(name, StandardCharsets.UTF_8);
+        }
+
+        return new MatchRecord(finishedAt, durationMillis, ranked, winningTeam, players, teams, eloBefore, eloAfter);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(ranked ? "ranked" : "simple");
+        text.append(" game at ").append(finishedAt).append(", ").append(durationMillis).append("ms:");
+        for (int i = 0; i < players.length; i++) {
+            text.append(" ").append(players[i]).append(teams[i] == winningTeam ? "*" : "")
+                .append(" ").append(eloBefore[i]).append("->").append(eloAfter[i]);
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for batch matchmaking. Every batch also records what the greedy
+// matcher would have formed from the same players, so the two can be compared.
+public class MatchStats {
+
+    private final LongAdder batches;
+    private final LongAdder games;
+    private final LongAdder spread;
+    private final LongAdder greedyGames;
+    private final LongAdder greedySpread;
+    private final long startTime;
+
+    public MatchStats() {
+        this.batches = new LongAdder();
+        this.games = new LongAdder();
+        this.spread = new LongAdder();
+        this.greedyGames = new LongAdder();
+        this.greedySpread = new LongAdder();
+        this.startTime = System.nanoTime();
+    }
+
+    public void recordBatch(List<List<ClientInfo>> groups, List<List<ClientInfo>> greedyGroups) {
+        batches.increment();
+
+        games.add(groups.size());
+        for (List<ClientInfo> group: groups) spread.add(spread(group));
+
+        greedyGames.add(greedyGroups.size());
+        for (List<ClientInfo> group: greedyGroups) greedySpread.add(spread(group));
+    }
+
+    public static int spread(List<ClientInfo> group) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (ClientInfo player: group) {
+            min = Math.min(min, player.elo);
+            max = Math.max(max, player.elo);
+        }
+        return max - min;
+    }
+
+    public long getGames() { return games.sum(); }
+
+    public double getMatchesPerSecond() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds == 0 ? 0 : games.sum() / seconds;
+    }
+
+    public double getAverageSpread() { return average(spread.sum(), games.sum()); }
+
+    public double getGreedyAverageSpread() { return average(greedySpread.sum(), greedyGames.sum()); }
+
+    private static double average(long total, long count) {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d batches, %d games (%.2f/s), avg Elo gap %.1f, greedy would have formed %d games with avg gap %.1f",
+                             batches.sum(), games.sum(), getMatchesPerSecond(), getAverageSpread(),
+                             greedyGames.sum(), getGreedyAverageSpread());
+    }
+
+}
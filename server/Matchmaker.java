@@ -0,0 +1,209 @@
+package server;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+// Matchmaking for one game mode, split into shards by a key (Elo band,
+// region...). Every shard has its own lock and its matching passes run on a
+// shared pool, so shards are matched in parallel. A periodic tick retries
+// every shard, since Elo windows widen with time, and moves players that
+// can't be matched where they are to the nearest shard that has players.
+public class Matchmaker {
+
+    private static int TICK_PERIOD = 1000;
+    private static int MIGRATE_AFTER = 2;
+
+    private final String name;
+    private final Shard[] shards;
+    private final ToIntFunction<ClientInfo> shardKey;
+    private final int playersPerGame;
+    private final ThreadPool scheduler;
+    private final TimerWheel timer;
+    private final Consumer<List<ClientInfo>> onMatch;
+    private final Map<ClientInfo, Shard> queued;
+    private long tickMillis;
+    private boolean batch;
+
+    public Matchmaker(String name, int shardCount, ToIntFunction<ClientInfo> shardKey, Supplier<MatchQueue> queueFactory,
+                      int playersPerGame, ThreadPool scheduler, TimerWheel timer, Consumer<List<ClientInfo>> onMatch) {
+        this.name = name;
+        this.shards = new Shard[Math.max(1, shardCount)];
+        this.shardKey = shardKey;
+        this.playersPerGame = playersPerGame;
+        this.scheduler = scheduler;
+        this.timer = timer;
+        this.onMatch = onMatch;
+        this.queued = new ConcurrentHashMap<>();
+        this.tickMillis = TICK_PERIOD;
+
+        for (int i = 0; i < shards.length; i++) shards[i] = new Shard(i, queueFactory.get());
+    }
+
+    // Players with Elo in [i * bandWidth, (i + 1) * bandWidth) go to shard i, the last shard takes the rest
+    public static ToIntFunction<ClientInfo> eloBands(int bandWidth, int shardCount) {
+        return client -> Math.min(Math.max(client.elo, 0) / bandWidth, shardCount - 1);
+    }
+
+    public static ToIntFunction<ClientInfo> byName() {
+        return client -> client.name.hashCode();
+    }
+
+    // Players are only matched on the tick, every tickMillis, so each pass
+    // sees everyone that arrived since the last one. Call before start().
+    public void setBatchTick(long tickMillis) {
+        this.batch = true;
+        this.tickMillis = tickMillis;
+    }
+
+    public void start() {
+        timer.schedule(this::tick, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean add(ClientInfo client) {
+        Shard shard = shards[Math.floorMod(shardKey.applyAsInt(client), shards.length)];
+
+        synchronized (shard) {
+            if (queued.putIfAbsent(client, shard) != null) return false;
+            client.queuedAt = System.nanoTime();
+            shard.queue.add(client);
+        }
+
+        if (!batch) shard.signal();
+        return true;
+    }
+
+    public boolean remove(ClientInfo client) {
+        while (true) {
+
+            Shard shard = queued.get(client);
+            if (shard == null) return false;
+
+            synchronized (shard) {
+                // moved to another shard in the meantime
+                if (queued.get(client) != shard) continue;
+
+                shard.queue.remove(client);
+                queued.remove(client);
+                return true;
+            }
+
+        }
+    }
+
+    public boolean contains(ClientInfo client) {
+        return queued.containsKey(client);
+    }
+
+    public int size() {
+        return queued.size();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private void tick() {
+        try {
+            rebalance();
+            for (Shard shard: shards) shard.signal();
+        } finally {
+            timer.schedule(this::tick, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Runs on the timer thread only, so two shards never trade their players
+    private void rebalance() {
+        for (Shard from: shards) {
+
+            if (from.queue.size() == 0 || from.queue.size() >= playersPerGame) continue;
+
+            Shard to = nearestNonEmpty(from);
+            if (to == null) continue;
+
+            Shard first = from.index < to.index ? from : to;
+            Shard second = first == from ? to : from;
+
+            synchronized (first) {
+                synchronized (second) {
+
+                    if (from.queue.size() >= playersPerGame) continue;
+
+                    Iterator<ClientInfo> it = from.queue.iterator();
+                    while (it.hasNext()) {
+
+                        ClientInfo client = it.next();
+                        if (client.getTimeInQueue() < MIGRATE_AFTER) continue;
+
+                        it.remove();
+                        to.queue.add(client);
+                        queued.put(client, to);
+                        System.out.println("[SERVER] - Moved " + client.toString() + " from " + name + " shard " + from.index + " to " + to.index);
+
+                    }
+
+                }
+            }
+
+            if (!batch) to.signal();
+
+        }
+    }
+
+    // Looks outwards, so with Elo bands this is also the closest Elo
+    private Shard nearestNonEmpty(Shard from) {
+        for (int distance = 1; distance < shards.length; distance++) {
+
+            Shard lower = from.index - distance >= 0 ? shards[from.index - distance] : null;
+            Shard higher = from.index + distance < shards.length ? shards[from.index + distance] : null;
+
+            int lowerSize = lower == null ? 0 : lower.queue.size();
+            int higherSize = higher == null ? 0 : higher.queue.size();
+
+            if (lowerSize == 0 && higherSize == 0) continue;
+            return lowerSize >= higherSize ? lower : higher;
+
+        }
+        return null;
+    }
+
+    private class Shard {
+        final int index;
+        final MatchQueue queue;
+        final AtomicBoolean scheduled;
+
+        Shard(int index, MatchQueue queue) {
+            this.index = index;
+            this.queue = queue;
+            this.scheduled = new AtomicBoolean(false);
+        }
+
+        // at most one pass per shard is queued at a time
+        void signal() {
+            if (queue.size() < playersPerGame) return;
+            if (scheduled.compareAndSet(false, true)) scheduler.submit(this::match);
+        }
+
+        void match() {
+            scheduled.set(false);
+            List<List<ClientInfo>> groups;
+
+            synchronized (this) {
+                groups = queue.pollAll(playersPerGame);
+                for (List<ClientInfo> group: groups) {
+                    for (ClientInfo player: group) queued.remove(player);
+                }
+            }
+
+            // games are started outside the lock so adds to this shard don't wait on them
+            for (List<ClientInfo> group: groups) onMatch.accept(group);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import utils.Histogram;
+
+// Named counters, gauges and histograms of the server. Lookups go through a
+// map, so hot paths should keep the returned counter or histogram in a field.
+// Names carry their unit, e.g. "auth.latency.us".
+public class Metrics {
+
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, Histogram> histograms;
+
+    public Metrics() {
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    // for histograms owned by another component
+    public void register(String name, Histogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public String report() {
+        Map<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter: counters.entrySet()) lines.put(counter.getKey(), Long.toString(counter.getValue().sum()));
+        for (Map.Entry<String, LongSupplier> gauge: gauges.entrySet()) lines.put(gauge.getKey(), Long.toString(gauge.getValue().getAsLong()));
+        for (Map.Entry<String, Histogram> histogram: histograms.entrySet()) lines.put(histogram.getKey(), histogram.getValue().toString());
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> line: lines.entrySet()) {
+            text.append(line.getKey()).append(" ").append(line.getValue()).append("\n");
+        }
+        return text.toString();
+    }
+
+    public void dump(Path file) {
+        String text = "# " + Instant.now() + "\n" + report() + "\n";
+        try {
+            Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
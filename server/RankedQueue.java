@@ -0,0 +1,318 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Ranked queue indexed both by arrival order and by Elo, so finding the
+// nearest opponents of a player is a couple of TreeMap lookups instead of
+// a scan over the whole queue. Not thread-safe, callers lock on the queue.
+public class RankedQueue implements MatchQueue {
+
+    private final Map<ClientInfo, Integer> byArrival;
+    private final NavigableMap<Integer, Set<ClientInfo>> byElo;
+    private final int relaxPeriod;
+    private final int relaxQuantity;
+    private final boolean batch;
+    private final MatchStats stats;
+
+    public RankedQueue(int relaxPeriod, int relaxQuantity) {
+        this(relaxPeriod, relaxQuantity, false, null);
+    }
+
+    // In batch mode pollAll groups the whole queue at once instead of
+    // repeating the greedy poll; stats may be null
+    public RankedQueue(int relaxPeriod, int relaxQuantity, boolean batch, MatchStats stats) {
+        this.byArrival = new LinkedHashMap<>();
+        this.byElo = new TreeMap<>();
+        this.relaxPeriod = relaxPeriod;
+        this.relaxQuantity = relaxQuantity;
+        this.batch = batch;
+        this.stats = stats;
+    }
+
+    @Override
+    public boolean add(ClientInfo client) {
+        if (byArrival.containsKey(client)) return false;
+
+        byArrival.put(client, client.elo);
+        byElo.computeIfAbsent(client.elo, elo -> new LinkedHashSet<>()).add(client);
+        return true;
+    }
+
+    @Override
+    public boolean remove(ClientInfo client) {
+        Integer elo = byArrival.remove(client);
+        if (elo == null) return false;
+
+        removeFromBucket(client, elo);
+        return true;
+    }
+
+    private void removeFromBucket(ClientInfo client, int elo) {
+        Set<ClientInfo> bucket = byElo.get(elo);
+        bucket.remove(client);
+        if (bucket.isEmpty()) byElo.remove(elo);
+    }
+
+    @Override
+    public int size() {
+        return byArrival.size();
+    }
+
+    public boolean isEmpty() {
+        return byArrival.isEmpty();
+    }
+
+    // The window widens with the time spent in this queue, not since login
+    public static int eloRange(ClientInfo client, int relaxPeriod, int relaxQuantity) {
+        int numRelaxations = client.getTimeInQueue() / relaxPeriod;
+        return relaxQuantity * (numRelaxations * numRelaxations);
+    }
+
+    // Looks for a group around each waiting player, oldest first, taking the
+    // closest connected players inside that player's window. The group is
+    // removed from the queue when found.
+    @Override
+    public List<ClientInfo> poll(int playersPerGame) {
+
+        for (ClientInfo anchor: byArrival.keySet()) {
+
+            if (!anchor.getCommunicator().isConnected()) continue;
+
+            int eloRange = eloRange(anchor, relaxPeriod, relaxQuantity);
+            List<ClientInfo> group = nearest(anchor, playersPerGame, eloRange);
+
+            if (group != null) {
+                for (ClientInfo player: group) remove(player);
+                return group;
+            }
+
+        }
+
+        return null;
+    }
+
+    // Walks outwards from the anchor's Elo, always taking the closer side next.
+    // The whole group, not just each player's distance to the anchor, must fit
+    // in the anchor's window, so a side stops once its next Elo would stretch
+    // the group past it.
+    private List<ClientInfo> nearest(ClientInfo anchor, int playersPerGame, int eloRange) {
+
+        int elo = byArrival.get(anchor);
+        int lhs = Math.max(elo - eloRange, 0);
+        int rhs = elo + eloRange;
+        int lowest = elo;
+        int highest = elo;
+
+        List<ClientInfo> group = new ArrayList<>(playersPerGame);
+        group.add(anchor);
+
+        Iterator<Map.Entry<Integer, Set<ClientInfo>>> lower = byElo.headMap(elo, true).descendingMap().entrySet().iterator();
+        Iterator<Map.Entry<Integer, Set<ClientInfo>>> higher = byElo.tailMap(elo, false).entrySet().iterator();
+
+        Map.Entry<Integer, Set<ClientInfo>> nextLower = next(lower, lhs, rhs);
+        Map.Entry<Integer, Set<ClientInfo>> nextHigher = next(higher, lhs, rhs);
+
+        while (group.size() < playersPerGame && (nextLower != null || nextHigher != null)) {
+
+            boolean takeLower = nextHigher == null
+                || (nextLower != null && elo - nextLower.getKey() <= nextHigher.getKey() - elo);
+
+            Map.Entry<Integer, Set<ClientInfo>> bucket = takeLower ? nextLower : nextHigher;
+            int bucketElo = bucket.getKey();
+
+            if (Math.max(highest, bucketElo) - Math.min(lowest, bucketElo) > eloRange) {
+                // further buckets on this side are only further away
+                if (takeLower) nextLower = null;
+                else nextHigher = null;
+                continue;
+            }
+
+            for (ClientInfo candidate: bucket.getValue()) {
+                if (group.size() == playersPerGame) break;
+                if (candidate.equals(anchor)) continue;
+                if (!candidate.getCommunicator().isConnected()) continue;
+
+                group.add(candidate);
+                lowest = Math.min(lowest, bucketElo);
+                highest = Math.max(highest, bucketElo);
+            }
+
+            if (takeLower) nextLower = next(lower, lhs, rhs);
+            else nextHigher = next(higher, lhs, rhs);
+
+        }
+
+        return group.size() == playersPerGame ? group : null;
+    }
+
+    @Override
+    public List<List<ClientInfo>> pollAll(int playersPerGame) {
+        if (!batch) return pollEach(playersPerGame);
+
+        List<List<ClientInfo>> greedy = greedyGroups(byArrival.keySet(), playersPerGame);
+        List<List<ClientInfo>> groups = runGroups(playersPerGame);
+
+        // the runs can miss games when windows differ, never form fewer than greedy
+        if (groups.size() < greedy.size()) groups = greedy;
+
+        for (List<ClientInfo> group: groups) {
+            for (ClientInfo player: group) remove(player);
+        }
+
+        if (stats != null && (!groups.isEmpty() || !greedy.isEmpty())) stats.recordBatch(groups, greedy);
+        return groups;
+    }
+
+    // Same groups as calling poll() until it fails, but every player is tried
+    // as an anchor once, so a pass is O(n * (playersPerGame + log n))
+    private List<List<ClientInfo>> pollEach(int playersPerGame) {
+        List<List<ClientInfo>> groups = new ArrayList<>();
+        List<ClientInfo> anchors = new ArrayList<>(byArrival.keySet());
+
+        for (ClientInfo anchor: anchors) {
+
+            if (byArrival.size() < playersPerGame) break;
+            if (!byArrival.containsKey(anchor) || !anchor.getCommunicator().isConnected()) continue;
+
+            List<ClientInfo> group = nearest(anchor, playersPerGame, eloRange(anchor, relaxPeriod, relaxQuantity));
+            if (group == null) continue;
+
+            for (ClientInfo player: group) remove(player);
+            groups.add(group);
+
+        }
+
+        return groups;
+    }
+
+    // Groups the queue sorted by Elo into runs of neighbours with a DP in
+    // O(n * playersPerGame): the most runs and, among those, the smallest
+    // total Elo spread. A run is allowed when it fits in the window of one of
+    // its players, as poll() requires of its anchor. When every window is the
+    // same, some best answer is made of such runs; when windows differ, the
+    // best games can interleave (a wide-window player pairing past a narrow
+    // one), so players no run took are then grouped greedily. This is a
+    // heuristic, pollAll() still falls back to plain greedy when that forms
+    // more games.
+    private List<List<ClientInfo>> runGroups(int playersPerGame) {
+
+        List<ClientInfo> sorted = new ArrayList<>(byArrival.size());
+        List<Integer> elos = new ArrayList<>(byArrival.size());
+        for (Map.Entry<Integer, Set<ClientInfo>> bucket: byElo.entrySet()) {
+            for (ClientInfo player: bucket.getValue()) {
+                if (!player.getCommunicator().isConnected()) continue;
+                sorted.add(player);
+                elos.add(bucket.getKey());
+            }
+        }
+
+        int n = sorted.size();
+        List<List<ClientInfo>> groups = new ArrayList<>();
+        if (n < playersPerGame) return groups;
+
+        // best[i] covers the first i players: most games, then least spread
+        int[] games = new int[n + 1];
+        long[] spread = new long[n + 1];
+        boolean[] closesGroup = new boolean[n + 1];
+
+        for (int i = 1; i <= n; i++) {
+
+            games[i] = games[i - 1];
+            spread[i] = spread[i - 1];
+
+            if (i < playersPerGame) continue;
+
+            int first = i - playersPerGame;
+            int gap = elos.get(i - 1) - elos.get(first);
+
+            if (!fitsSomeWindow(sorted, elos, first, i)) continue;
+
+            int withGroup = games[first] + 1;
+            long withSpread = spread[first] + gap;
+            if (withGroup > games[i] || (withGroup == games[i] && withSpread < spread[i])) {
+                games[i] = withGroup;
+                spread[i] = withSpread;
+                closesGroup[i] = true;
+            }
+
+        }
+
+        Set<ClientInfo> grouped = new HashSet<>();
+        for (int i = n; i > 0; ) {
+            if (closesGroup[i]) {
+                List<ClientInfo> group = new ArrayList<>(sorted.subList(i - playersPerGame, i));
+                groups.add(group);
+                grouped.addAll(group);
+                i -= playersPerGame;
+            } else {
+                i--;
+            }
+        }
+
+        List<ClientInfo> leftovers = new ArrayList<>();
+        for (ClientInfo player: byArrival.keySet()) {
+            if (!grouped.contains(player)) leftovers.add(player);
+        }
+        groups.addAll(greedyGroups(leftovers, playersPerGame));
+
+        return groups;
+    }
+
+    // Same rule as nearest(): the spread of the whole group fits in the window of one of its players
+    private boolean fitsSomeWindow(List<ClientInfo> sorted, List<Integer> elos, int from, int to) {
+        int spread = elos.get(to - 1) - elos.get(from);
+
+        for (int j = from; j < to; j++) {
+            if (spread <= eloRange(sorted.get(j), relaxPeriod, relaxQuantity)) return true;
+        }
+        return false;
+    }
+
+    // What repeated greedy polls would form from these players, without touching this queue
+    private List<List<ClientInfo>> greedyGroups(Iterable<ClientInfo> players, int playersPerGame) {
+        RankedQueue copy = new RankedQueue(relaxPeriod, relaxQuantity);
+        for (ClientInfo player: players) copy.add(player);
+        return copy.pollAll(playersPerGame);
+    }
+
+    private static Map.Entry<Integer, Set<ClientInfo>> next(Iterator<Map.Entry<Integer, Set<ClientInfo>>> it, int lhs, int rhs) {
+        if (!it.hasNext()) return null;
+
+        Map.Entry<Integer, Set<ClientInfo>> entry = it.next();
+        return entry.getKey() >= lhs && entry.getKey() <= rhs ? entry : null;
+    }
+
+    @Override
+    public Iterator<ClientInfo> iterator() {
+        Iterator<Map.Entry<ClientInfo, Integer>> it = byArrival.entrySet().iterator();
+
+        return new Iterator<ClientInfo>() {
+            private Map.Entry<ClientInfo, Integer> current;
+
+            @Override
+            public boolean hasNext() { return it.hasNext(); }
+
+            @Override
+            public ClientInfo next() {
+                current = it.next();
+                return current.getKey();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                removeFromBucket(current.getKey(), current.getValue());
+            }
+        };
+    }
+
+}
@@ -2,408 +2,548 @@ package server;
 
 import java.io.*;
 import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
-
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import game.EloRating;
 import game.Game;
+import game.Glicko2Rating;
+import game.MatchResult;
+import game.RatingEngine;
+import game.RatingReplay;
+import game.Teams;
+import utils.BufferPool;
+import utils.Histogram;
 import utils.PasswordHashes;
+import utils.Protocol;
 
 public class Server {
 
     private static String db = "./docs/db_user.csv";
+    private static String mappedDb = "./docs/db_user.dat";
+    private static String DB_STORE = System.getProperty("db.store", "csv");
+    private static String HISTORY_DIRECTORY = "./docs/history";
+    private static boolean RATING_REPLAY = Boolean.getBoolean("rating.replay");
 
     private static int BASE_ELO = 100;
-    private static int PLAYERS_PER_GAME = 2;
+    // lobby size and number of teams per mode, 0 teams means every player for themselves
+    private static int SIMPLE_PLAYERS_PER_GAME = Integer.getInteger("simple.players", 2);
+    private static int SIMPLE_TEAMS = Integer.getInteger("simple.teams", 0);
+    private static int RANKED_PLAYERS_PER_GAME = Integer.getInteger("ranked.players", 2);
+    private static int RANKED_TEAMS = Integer.getInteger("ranked.teams", 0);
     private static int ELO_RELAX_PERIOD = 5;
     private static int ELO_RELAX_QUANTITY = 50;
     private static int DISCONNECT_PERIOD = 30;
+    private static int MAX_ELO = 65535;
+    private static String RATING_ENGINE = System.getProperty("rating.engine", "elo");
+    private static int RATING_K = Integer.getInteger("rating.k", 20);
+    private static double GLICKO_DEVIATION = 350;
+    private static double GLICKO_VOLATILITY = 0.06;
+    private static double GLICKO_TAU = 0.5;
+    private static int LEADERBOARD_SIZE = 10;
+    private static int MAX_LEADERBOARD_SIZE = 100;
+    private static int ELO_BAND_WIDTH = 200;
+    private static int MATCH_BATCH_TICK = Integer.getInteger("matchmaking.batch.tick", 0);
+    private static int MATCH_STATS_PERIOD = 10;
+    private static int MATCHMAKING_SHARDS = Integer.getInteger("matchmaking.shards", Runtime.getRuntime().availableProcessors());
+    // any two simple players can play, so more shards only split them up until they migrate
+    private static int SIMPLE_MATCHMAKING_SHARDS = Integer.getInteger("matchmaking.simple.shards", 1);
+    private static int HASH_ITERATIONS = Integer.getInteger("hash.iterations", PasswordHashes.DEFAULT_ITERATIONS);
+    private static int AUTH_CACHE_TTL = Integer.getInteger("auth.cache.ttl", 60);
+    // bytes queued for one connection before it counts as a slow consumer, and the
+    // level it must drain to; slow consumers are disconnected or have messages shed
+    private static int WRITE_HIGH_WATERMARK = Integer.getInteger("write.high.watermark", 256 * 1024);
+    private static int WRITE_LOW_WATERMARK = Integer.getInteger("write.low.watermark", 64 * 1024);
+    private static String SLOW_CONSUMER_POLICY = System.getProperty("write.slow.consumer", "disconnect");
+    // seconds between dumps of every metric to METRICS_FILE, 0 turns them off
+    private static int METRICS_PERIOD = Integer.getInteger("metrics.period", 60);
+    private static String METRICS_FILE = System.getProperty("metrics.file", "./docs/metrics.log");
 
-    private Thread connectionListener;
-    private Thread disconnectHandler;
     private Thread eloHandler;
-    private Thread simpleMatchmakingThread;
-    private Thread rankedMatchmakingThread;
 
     private ServerSocketChannel serverSocketChannel;
-    private Selector selector;
-    private List<ServerCommunicator> connections;
+    private EventLoop[] eventLoops;
+    private int selectorThreads;
+    private int nextLoop;
+    private Set<ServerCommunicator> connections;
+    private BufferPool bufferPool;
+    private AuthStage authStage;
+    private Map<String, ClientInfo> tokens;
     private List<ClientInfo> loggedInClients;
-    private List<ClientInfo> simplePlayerQueue;
-    private List<ClientInfo> rankedPlayerQueue;
+    private Matchmaker simpleMatchmaker;
+    private Matchmaker rankedMatchmaker;
+    private ThreadPool matchmakingPool;
+    private MatchStats rankedStats;
+    private ExecutionMode executionMode;
+    private TimerWheel gameTimer;
+    private TimerWheel disconnectReaper;
     private ThreadPool onlineGames;
+    private ThreadFactory virtualThreads;
+    private BlockingQueue<Game> finishedGames;
+    private UserStore userStore;
+    private Leaderboard leaderboard;
+    private RatingEngine ratingEngine;
+    private MatchHistory matchHistory;
+    private Metrics metrics;
+    private LongAdder accepts;
+    private LongAdder reads;
+    private LongAdder messagesIn;
+    private Histogram simpleQueueWait;
+    private Histogram rankedQueueWait;
+    private Histogram rankedEloWindow;
+    private Histogram rankedEloGap;
+    private Histogram gameDuration;
+    private Histogram eloPersistTime;
+    private Histogram eloApplyLatency;
+
+    public Server(int port) throws IOException {
+        this(port, 1, ExecutionMode.EVENT);
+    }
 
-    public Server(int port) throws IOException {         
+    public Server(int port, int selectorThreads, ExecutionMode executionMode) throws IOException {         
             
+            checkLobby("simple", SIMPLE_PLAYERS_PER_GAME, SIMPLE_TEAMS);
+            checkLobby("ranked", RANKED_PLAYERS_PER_GAME, RANKED_TEAMS);
+
+            this.metrics = new Metrics();
+            this.accepts = metrics.counter("connections.accepted");
+            this.reads = metrics.counter("reads");
+            this.messagesIn = metrics.counter("messages.in");
+            this.simpleQueueWait = metrics.histogram("queue.wait.simple.ms");
+            this.rankedQueueWait = metrics.histogram("queue.wait.ranked.ms");
+            this.rankedEloWindow = metrics.histogram("match.elo.window.ranked");
+            this.rankedEloGap = metrics.histogram("match.elo.gap.ranked");
+            this.gameDuration = metrics.histogram("game.duration.ms");
+            this.eloPersistTime = metrics.histogram("elo.persist.us");
+            this.eloApplyLatency = metrics.histogram("elo.apply.latency.us");
+
+            this.selectorThreads = Math.max(1, selectorThreads);
+            this.executionMode = executionMode;
             initServer(port);
-            initSelector();
-            this.connections = new ArrayList<>();
+            this.userStore = openUserStore();
+            this.matchHistory = new MatchHistory(Path.of(HISTORY_DIRECTORY));
+            if (RATING_REPLAY) replayRatings();
+            matchHistory.start();
+            this.ratingEngine = newRatingEngine();
+            this.leaderboard = new Leaderboard(MAX_ELO, userStore.size() * 2);
+            for (int id = 0; id < userStore.size(); id++) leaderboard.update(id, userStore.get(id).elo);
+            this.connections = ConcurrentHashMap.newKeySet();
+            this.bufferPool = new BufferPool(4096, 2048);
+            if (WRITE_LOW_WATERMARK > WRITE_HIGH_WATERMARK) {
+                throw new IllegalArgumentException("write.low.watermark can't be above write.high.watermark");
+            }
+            ServerCommunicator.configureBackPressure(WRITE_LOW_WATERMARK, WRITE_HIGH_WATERMARK,
+                ServerCommunicator.SlowConsumerPolicy.valueOf(SLOW_CONSUMER_POLICY.trim().toUpperCase()));
+            this.tokens = new ConcurrentHashMap<>();
             this.loggedInClients = new ArrayList<>();
-            this.simplePlayerQueue = new LinkedList<>();
-            this.rankedPlayerQueue = new ArrayList<>();
-            this.onlineGames = new ThreadPool(5);
-
-            System.out.println("[SERVER] - Server created, starting...");
+            this.gameTimer = new TimerWheel("game-timer", 100, TimeUnit.MILLISECONDS, 512);
+            this.disconnectReaper = new TimerWheel("disconnect-reaper", 1, TimeUnit.SECONDS, 64);
+
+            int shards = MATCHMAKING_SHARDS;
+            this.matchmakingPool = new ThreadPool(Math.min(shards, Runtime.getRuntime().availableProcessors()));
+            this.simpleMatchmaker = new Matchmaker("simple", SIMPLE_MATCHMAKING_SHARDS, Matchmaker.byName(), SimpleQueue::new,
+                                                   SIMPLE_PLAYERS_PER_GAME, matchmakingPool, disconnectReaper,
+                                                   players -> {
+                                                       recordMatch(players, false);
+                                                       startGame(newGame(players, SIMPLE_TEAMS, false));
+                                                   });
+            boolean batch = MATCH_BATCH_TICK > 0;
+            this.rankedStats = new MatchStats();
+            this.rankedMatchmaker = new Matchmaker("ranked", shards, Matchmaker.eloBands(ELO_BAND_WIDTH, shards),
+                                                   () -> new RankedQueue(ELO_RELAX_PERIOD, ELO_RELAX_QUANTITY, batch, rankedStats),
+                                                   RANKED_PLAYERS_PER_GAME, matchmakingPool, batch ? gameTimer : disconnectReaper,
+                                                   players -> {
+                                                       recordMatch(players, true);
+                                                       startGame(newGame(players, RANKED_TEAMS, true));
+                                                   });
+            if (batch) rankedMatchmaker.setBatchTick(MATCH_BATCH_TICK);
+            if (executionMode == ExecutionMode.POOL) this.onlineGames = new ThreadPool(5);
+            if (executionMode == ExecutionMode.VIRTUAL) this.virtualThreads = ExecutionMode.virtualThreadFactory();
+
+            int authThreads = Runtime.getRuntime().availableProcessors();
+            ThreadFactory authThreadFactory = executionMode == ExecutionMode.VIRTUAL ? virtualThreads : runnable -> {
+                Thread thread = new Thread(runnable, "auth-worker");
+                thread.setDaemon(true);
+                return thread;
+            };
+            this.authStage = new AuthStage(authThreads, 1024, authThreadFactory);
+            PasswordHashes.setIterations(HASH_ITERATIONS);
+            PasswordHashes.setVerificationCacheTtl(AUTH_CACHE_TTL, TimeUnit.SECONDS);
+            this.finishedGames = new LinkedBlockingQueue<>();
+            registerGauges();
+
+            System.out.println("[SERVER] - Server created in " + executionMode + " mode, starting...");
             run();
 
     }
 
+    private void registerGauges() {
+        metrics.gauge("connections.open", connections::size);
+        metrics.gauge("bytes.read", ServerCommunicator::getTotalBytesRead);
+        metrics.gauge("bytes.written", ServerCommunicator::getTotalBytesWritten);
+        metrics.gauge("players.logged.in", () -> { synchronized (loggedInClients) { return loggedInClients.size(); } });
+        metrics.gauge("queue.size.simple", simpleMatchmaker::size);
+        metrics.gauge("queue.size.ranked", rankedMatchmaker::size);
+        metrics.gauge("pool.matchmaking.queue", matchmakingPool::getQueueDepth);
+        if (onlineGames != null) metrics.gauge("pool.games.queue", onlineGames::getQueueDepth);
+        metrics.gauge("auth.queue", authStage::getQueueDepth);
+        metrics.gauge("auth.rejected", authStage::getRejectedCount);
+        metrics.gauge("elo.pending", finishedGames::size);
+        metrics.register("auth.latency.us", authStage.getLatency());
+    }
+
+    private static UserStore openUserStore() throws IOException {
+        switch (DB_STORE) {
+            case "csv": return new CsvUserStore(db);
+            case "mapped": {
+                // the first start on the mapped store converts the CSV database
+                if (Files.exists(Path.of(mappedDb))) return new MappedUserStore(mappedDb);
+                return MappedUserStore.importCsv(db, mappedDb);
+            }
+            default: throw new IllegalArgumentException("Unknown user store: " + DB_STORE + ", expected csv or mapped");
+        }
+    }
+
+    private static void checkLobby(String mode, int players, int teams) {
+        if (players < 2) throw new IllegalArgumentException(mode + " games need at least 2 players");
+        if (teams == 1 || teams < 0 || (teams > 1 && players % teams != 0)) {
+            throw new IllegalArgumentException(mode + " games of " + players + " players can't be split into " + teams + " teams");
+        }
+    }
+
     private void initServer(int port) throws IOException {
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.bind(new InetSocketAddress(port));
     }
 
-    private void initSelector() throws IOException {
-        this.selector = Selector.open();
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    private void createConnectionListener() throws IOException {
+        this.eventLoops = new EventLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            eventLoops[i] = new EventLoop("selector-" + i, this::handleKey);
+        }
+
+        EventLoop acceptLoop = eventLoops[0];
+        acceptLoop.register(serverSocketChannel, SelectionKey.OP_ACCEPT, null);
+
+        for (EventLoop loop: eventLoops) metrics.register("loop." + loop.getName() + ".busy.us", loop.getBusyTimes());
+
+        for (EventLoop loop: eventLoops) loop.start();
     }
 
-    private void createConnectionListener() {
-        this.connectionListener = new Thread(() -> {    
-            try {
+    private void handleKey(EventLoop loop, SelectionKey key) throws IOException {
+        if (key.isAcceptable()) {
+            handleAccept(key);
+            return;
+        }
 
-                while (!Thread.currentThread().isInterrupted()) {
+        Session session = (Session) key.attachment();
+        if (session == null) return;
 
-                    selector.selectNow();
+        // a reset peer fails the flush or a reply; drop it like a failed read
+        try {
+            if (key.isWritable()) session.getCommunicator().flush();
+            if (key.isValid() && key.isReadable()) handleRead(key);
+        } catch (IOException e) {
+            System.err.println("[SERVER] - Dropping connection: " + e.getMessage());
+            disconnect(session.getCommunicator(), session.getClient());
+        }
+    }
 
-                    Set<SelectionKey> keys = selector.selectedKeys();
-                    for (SelectionKey key: keys)  {
-                
-                        if (!key.isValid()) continue;
-                        if (key.isAcceptable()) {
-                            
-                            ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-                            SocketChannel clientChannel = serverChannel.accept();
-                            
-                            if (clientChannel == null) continue;
-                            System.out.println("[SERVER] - New client connected: " + clientChannel.getRemoteAddress());
-
-                            clientChannel.configureBlocking(false);
-
-                            SelectionKey newClientKey = clientChannel.register(selector, SelectionKey.OP_READ);                            
-                            ServerCommunicator newCommunicator = new ServerCommunicator(newClientKey);
-                           
-                            synchronized (connections) {
-                                connections.add(newCommunicator);
-                            }
-                        
-                
-                        } else if (key.isReadable()) {
-                            
-                            System.out.println("[SERVER] - Reading from: " + ((SocketChannel) key.channel()).getRemoteAddress());
-
-                            ServerCommunicator communicator = getCommunicator(key);
-                            if (communicator == null) continue;
-
-                            ClientInfo client = getClient(key);
-              
-                            String clientInput = communicator.readString();
-                            if (clientInput == null) {
-                                communicator.close();
-                                continue;
-                            }
-
-                            ClientInfo existingClient;
-                            if ((existingClient = checkToken(clientInput)) != null) {
-                                existingClient.setCommunicator(communicator);
-                                communicator.write("Reconnected, back in queue.");
-                                continue;
-                            } 
-
-                            String[] clientResponse = clientInput.split(":", 2);
-                            if (clientResponse.length < 2) {
-
-                                if (client != null && client.name != null) { 
-                                    try {
-                                        
-                                        int choice = Integer.parseInt(clientInput);
-        
-                                        if (choice == 1) {
+    private void handleAccept(SelectionKey key) throws IOException {
 
-                                            synchronized (simplePlayerQueue) {
-                                                System.out.println("[SERVER] - Adding new player to simple queue: " + client.toString());
-                                                simplePlayerQueue.add(client);
-                                                simplePlayerQueue.notify();
-                                            }
-    
-                                        } else if (choice == 2) {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        SocketChannel clientChannel;
 
-                                            synchronized (rankedPlayerQueue) {
-                                                System.out.println("[SERVER] - Adding new player to ranked queue: " + client.toString());
-                                                rankedPlayerQueue.add(client);
-                                                rankedPlayerQueue.notify();
-                                            }
-    
-                                        } else if (choice == 3) client.getCommunicator().close();
-    
-    
-                                    } catch (NumberFormatException e) {
-                                        e.printStackTrace();
-                                    }
-
-                                    continue;
-                                    
-                                }
-                                communicator.write("Invalid token");
-                                continue;
-                            }
-
-                            String gameMode = clientResponse[0];
-                            if (gameMode.equals("3")) {
-                                communicator.close();
-                                continue;
-                            }
-
-                            String credentials = clientResponse[1];
-
-                            authenticate(communicator, credentials, gameMode);
-                            continue;
-
-                        }
-                    }
-                    keys.clear();
+        while ((clientChannel = serverChannel.accept()) != null) {
+
+            System.out.println("[SERVER] - New client connected: " + clientChannel.getRemoteAddress());
+            accepts.increment();
+            clientChannel.configureBlocking(false);
+
+            EventLoop target = eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+
+            target.register(clientChannel, SelectionKey.OP_READ, newClientKey -> {
+                try {
+
+                    ServerCommunicator newCommunicator = new ServerCommunicator(newClientKey, target, bufferPool);
+                    Session session = new Session(newCommunicator);
+                    newClientKey.attach(session);
+
+                    newCommunicator.setOnSlowConsumer(() -> {
+                        try { disconnect(newCommunicator, session.getClient()); }
+                        catch (IOException e) { e.printStackTrace(); }
+                    });
+                    connections.add(newCommunicator);
+
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+            });
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-        connectionListener.start();
+        }
 
     }
 
-    private void createSimpleMatchmaking() {
-        this.simpleMatchmakingThread = new Thread(() -> {
+    private void handleRead(SelectionKey key) throws IOException {
 
-            while (!Thread.currentThread().isInterrupted()) {
-                
-                synchronized (simplePlayerQueue) {
-                    
-                    while (simplePlayerQueue.size() < PLAYERS_PER_GAME) {
-                        try { simplePlayerQueue.wait(); } 
-                        catch (InterruptedException e) { e.printStackTrace(); }
-                    }
+        reads.increment();
 
-                    List<ClientInfo> players = getNormalPlayers();
-                    if (players.size() < PLAYERS_PER_GAME) continue;
-                    
-                    Game game = new Game(players, false);
-                    onlineGames.submit(game);
+        Session session = (Session) key.attachment();
+        if (session == null) return;
 
-                    System.out.println("[GAME] - Added game to queue");
+        ServerCommunicator communicator = session.getCommunicator();
 
-                }
+        List<String[]> messages;
+        try {
+            messages = communicator.readMessages();
+        } catch (IOException e) {
+            System.err.println("[SERVER] - Dropping connection: " + e.getMessage());
+            messages = null;
+        }
 
-            }
+        if (messages == null) {
+            disconnect(communicator, session.getClient());
+            return;
+        }
+
+        messagesIn.add(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            if (!communicator.isConnected()) break;
+            handleMessage(session, messages.get(i));
+        }
 
-        });
-        simpleMatchmakingThread.start();
     }
 
-    private void createRankedMatchmaking() {
-        this.rankedMatchmakingThread = new Thread(() -> {
+    private void handleMessage(Session session, String[] message) throws IOException {
 
-            while (!Thread.currentThread().isInterrupted()) {
-                
-                synchronized (rankedPlayerQueue) {
-                    
-                    while (rankedPlayerQueue.size() < PLAYERS_PER_GAME) {
-                        try { rankedPlayerQueue.wait(); } 
-                        catch (InterruptedException e) { e.printStackTrace(); }
-                    }
-
-                    List<ClientInfo> players = getRankedPlayers();
-                    if (players == null) continue;
-
-                    
-                    Game game = new Game(players, true);
-                    onlineGames.submit(game);
-                    
-                    System.out.println("[GAME] - Starting a new ranked game!");
+        ServerCommunicator communicator = session.getCommunicator();
+        ClientInfo client = session.getClient();
+
+        if (message.length == 0) return;
+        String command = message[0];
 
+        switch (command) {
+
+            case Protocol.TOKEN: {
+
+                ClientInfo existingClient;
+                if (message.length < 2 || (existingClient = checkToken(message[1])) == null) {
+                    communicator.write("Invalid token");
+                    return;
                 }
 
-            }
+                TimerWheel.Timeout expiry = existingClient.disconnectTimeout;
+                if (expiry != null) expiry.cancel();
+                existingClient.disconnectedTime = 0;
 
-        });
-        rankedMatchmakingThread.start();
-    }
+                existingClient.setCommunicator(communicator);
+                session.setClient(existingClient);
 
-    private void createDisconnectHandler() {
-        this.disconnectHandler = new Thread(() -> {
+                if (existingClient.game != null) communicator.write("Reconnected, back in game.");
+                else if (simpleMatchmaker.contains(existingClient) || rankedMatchmaker.contains(existingClient)) communicator.write("Reconnected, back in queue.");
+                else communicator.write("Reconnected.");
+                return;
 
-            while (!Thread.currentThread().isInterrupted()) {
+            }
+
+            case Protocol.INPUT: {
 
-                synchronized (connections) {
+                Game game = client != null ? client.game : null;
+                if (game != null && message.length > 1) game.onInput(client, message[1]);
+                return;
 
-                    Iterator<ServerCommunicator> it = connections.iterator();
-                    while (it.hasNext()) {
+            }
 
-                        ServerCommunicator communicator = it.next();
-                        if (!communicator.isConnected()) {
-                            it.remove();
-                        }
-                    }
+            case Protocol.QUEUE: {
 
+                if (client == null) {
+                    communicator.write("Invalid token");
+                    return;
                 }
 
-                synchronized (loggedInClients) {
-                    Iterator<ClientInfo> it = loggedInClients.iterator();
-                    while (it.hasNext()) {
+                String gameMode = message.length > 1 ? message[1] : "";
+                if (gameMode.equals(Protocol.SIMPLE) || gameMode.equals(Protocol.RANKED)) queuePlayer(client, gameMode);
+                return;
 
-                        ClientInfo client = it.next();
-                        if (!client.getCommunicator().isConnected()) {
+            }
 
-                            if (client.disconnectedTime == 0) {
-                                client.disconnectedTime = System.currentTimeMillis();
-                                continue;
-                            }
+            case Protocol.QUIT: {
+                disconnect(communicator, client);
+                return;
+            }
 
-                            if (client.getTimeSinceDisconnect() > DISCONNECT_PERIOD) {
-                                it.remove();
-                                System.out.println("[SERVER] - Removed " + client.toString() + " from logged in clients");
-                            } 
+            case Protocol.RANK: {
 
-                        } else if (client.disconnectedTime != 0) client.disconnectedTime = 0;
-                    }
+                if (client == null) {
+                    communicator.write("Invalid token");
+                    return;
+                }
 
+                int count = LEADERBOARD_SIZE;
+                if (message.length > 1) {
+                    try { count = Math.min(Math.max(Integer.parseInt(message[1]), 1), MAX_LEADERBOARD_SIZE); }
+                    catch (NumberFormatException e) { count = LEADERBOARD_SIZE; }
                 }
 
-                synchronized (simplePlayerQueue) {
-                
-                    Iterator<ClientInfo> it = simplePlayerQueue.iterator();
-                    while (it.hasNext()) {
+                communicator.write(leaderboardText(client, count));
+                return;
+
+            }
 
-                        ClientInfo client = it.next();
-                        if (!client.getCommunicator().isConnected()) {
+            case Protocol.AUTH: {
 
-                            if (client.disconnectedTime == 0) {
-                                client.disconnectedTime = System.currentTimeMillis();
-                                continue;
-                            }
+                if (message.length < 5) {
+                    communicator.write("Failed to login, re-input your credentials.");
+                    return;
+                }
 
-                            if (client.getTimeSinceDisconnect() > DISCONNECT_PERIOD) {
-                                it.remove();
-                                System.out.println("[SERVER] - Removed " + client.toString() + " from the simple queue");
-                            } 
+                String gameMode = message[1];
+                String choice = message[2];
+                String username = message[3];
+                String password = message[4];
 
-                        } else if (client.disconnectedTime != 0) client.disconnectedTime = 0;
+                authenticate(session, gameMode, choice, username, password);
+                return;
 
-                    }
+            }
 
-                }
+            default: System.err.println("[SERVER] - Unknown command: " + command);
 
-                synchronized (rankedPlayerQueue) {
-                
-                    Iterator<ClientInfo> it = rankedPlayerQueue.iterator();
-                    while (it.hasNext()) {
+        }
 
-                        ClientInfo client = it.next();
-                        if (!client.getCommunicator().isConnected()) {
+    }
 
-                            if (client.disconnectedTime == 0) {
-                                client.disconnectedTime = System.currentTimeMillis();
-                                continue;
-                            }
+    private void queuePlayer(ClientInfo client, String gameMode) {
+        if (gameMode.equals(Protocol.SIMPLE)) {
+            System.out.println("[SERVER] - Adding new player to simple queue: " + client.toString());
+            simpleMatchmaker.add(client);
+        } else {
+            System.out.println("[SERVER] - Adding new player to ranked queue: " + client.toString());
+            rankedMatchmaker.add(client);
+        }
+    }
 
-                            if (client.getTimeSinceDisconnect() > DISCONNECT_PERIOD) {
-                                it.remove();
-                                System.out.println("[SERVER] - Removed " + client.toString() + " from the ranked queue");
-                            } 
+    private void disconnect(ServerCommunicator communicator, ClientInfo client) throws IOException {
 
-                        } else if (client.disconnectedTime != 0) client.disconnectedTime = 0;
-                        
-                    }
+        communicator.close();
+        if (!connections.remove(communicator)) return;
 
-                }
+        if (client == null) return;
 
-            }
+        // logged in players keep their place for DISCONNECT_PERIOD seconds, a reconnect cancels this
+        client.disconnectedTime = System.currentTimeMillis();
+        client.disconnectTimeout = disconnectReaper.schedule(() -> expire(client), DISCONNECT_PERIOD, TimeUnit.SECONDS);
 
-        });
-        disconnectHandler.start();
     }
- 
-    private void createEloHandler() {
 
-        this.eloHandler = new Thread(() -> {
+    private void expire(ClientInfo client) {
 
-            while (!Thread.currentThread().isInterrupted()) {
+        if (client.getCommunicator().isConnected()) return;
 
-                synchronized (onlineGames) {
+        tokens.remove(client.getToken(), client);
 
-                    Iterator<Runnable> iterator = onlineGames.completedTasks.iterator();
-                    while (iterator.hasNext()) {
-                        
-                        Game game = (Game) iterator.next();
+        synchronized (loggedInClients) {
+            if (loggedInClients.remove(client)) {
+                System.out.println("[SERVER] - Removed " + client.toString() + " from logged in clients");
+            }
+        }
 
-                        if (game.winner == null) continue;
-                        System.out.println("[GAME] - Winner: " + game.winner.toString());
-                        List<ClientInfo> players = game.getPlayers();
+        if (simpleMatchmaker.remove(client)) {
+            System.out.println("[SERVER] - Removed " + client.toString() + " from the simple queue");
+        }
 
-                        for (ClientInfo player: players) {
+        if (rankedMatchmaker.remove(client)) {
+            System.out.println("[SERVER] - Removed " + client.toString() + " from the ranked queue");
+        }
 
-                            SocketChannel playerChannel = player.getCommunicator().getChannel();
-                            try {
+    }
+ 
+    private void reportMatchStats(long lastGames) {
+        long games = rankedStats.getGames();
+        if (games != lastGames) System.out.println("[SERVER] - Ranked batches: " + rankedStats.toString());
+
+        disconnectReaper.schedule(() -> reportMatchStats(games), MATCH_STATS_PERIOD, TimeUnit.SECONDS);
+    }
 
-                                SelectionKey newKey = playerChannel.register(selector, SelectionKey.OP_READ);
-                                player.getCommunicator().setKey(newKey);
+    private void recordMatch(List<ClientInfo> players, boolean isRanked) {
+        long now = System.nanoTime();
+        Histogram queueWait = isRanked ? rankedQueueWait : simpleQueueWait;
+        for (ClientInfo player: players) queueWait.record((now - player.queuedAt) / 1000000);
 
+        if (!isRanked) return;
 
-                            } catch (ClosedChannelException e) {
-                                e.printStackTrace();
-                            }
+        // the longest waiting player has the widest window, the one that let the group form
+        int window = 0;
+        for (ClientInfo player: players) window = Math.max(window, RankedQueue.eloRange(player, ELO_RELAX_PERIOD, ELO_RELAX_QUANTITY));
+        rankedEloWindow.record(window);
+        rankedEloGap.record(MatchStats.spread(players));
+    }
+
+    private static Game newGame(List<ClientInfo> players, int teams, boolean isRanked) {
+        if (teams == 0) return new Game(players, isRanked);
+        return Game.ofTeams(Teams.snakeDraft(players, teams), isRanked);
+    }
 
-                        }
+    private void startGame(Game game) {
+        System.out.println(game.isRanked ? "[GAME] - Starting a new ranked game!" : "[GAME] - Starting a new simple game!");
+        game.setOnFinish(finishedGames::add);
 
+        switch (executionMode) {
+            case POOL: onlineGames.submit(game); break;
+            case VIRTUAL: virtualThreads.newThread(game).start(); break;
+            default: game.start(gameTimer); break;
+        }
+    }
 
+    private void createEloHandler() {
 
-                        if (!game.isRanked)  {
-                            iterator.remove();
-                            continue;
-                        }
+        this.eloHandler = new Thread(() -> {
 
+            List<Game> batch = new ArrayList<>();
 
-                        try {
+            while (!Thread.currentThread().isInterrupted()) {
 
-                            Path path = Path.of(db);
-                            List<String> lines = Files.readAllLines(path);
-                
-                            for (ClientInfo player: players) {
+                try {
+                    batch.add(finishedGames.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                finishedGames.drainTo(batch);
 
-                                for (int i = 0; i < lines.size(); i++) {
-    
-                                    String[] values = lines.get(i).split(",");
-                                    if (values[0].equals(player.name)) {
-    
-                                        String password = values[1];
-                                        lines.set(i, String.format("%s,%s,%d", player.name, password, player.elo));
-                                        break;
+                Map<String, Integer> before = new HashMap<>();
+                for (Game game: batch) {
+                    for (ClientInfo player: game.getPlayers()) before.put(player.name, storedElo(player.name));
+                }
 
-                                    } 
-    
-    
-                                }
-                            }
+                applyRatings(batch);
 
-                            Files.write(path, lines, StandardCharsets.UTF_8);
-                
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                for (Game game: batch) {
 
-                        iterator.remove();
-                       
-                    }
+                    gameDuration.record((game.finishedAt - game.startedAt) / 1000000);
+                    for (ClientInfo winner: game.winningTeam) System.out.println("[GAME] - Winner: " + winner.toString());
+                    if (game.isRanked) eloApplyLatency.record((System.nanoTime() - game.finishedAt) / 1000);
 
                 }
 
+                for (Game game: batch) matchHistory.append(MatchRecord.of(game, before::get, this::storedElo));
+
+                batch.clear();
+
             }
 
         });
@@ -411,291 +551,284 @@ public class Server {
 
     }
 
-    private ClientInfo checkToken(String input) {
+    private String leaderboardText(ClientInfo client, int count) {
+        StringBuilder text = new StringBuilder("Top " + count + ":\n");
 
-        synchronized (simplePlayerQueue) {
+        // rows show the Elo the board ranked on: the store's copy changes
+        // before the board is updated, which would print rows out of order
+        UserRecord own = userStore.get(client.name);
+        synchronized (leaderboard) {
 
-            Iterator<ClientInfo> it = simplePlayerQueue.iterator();
-            while (it.hasNext()) {
+            int position = 1;
+            for (int id: leaderboard.top(count)) {
+                UserRecord record = userStore.get(id);
+                if (record == null) continue;
+                text.append(position++).append(".) ").append(record.name).append(" - ").append(leaderboard.elo(id)).append(" elo\n");
+            }
 
-                ClientInfo curr = it.next();
-                if (curr.getToken().equals(input)) {
-                    return curr;
-                }
+            int rank = own == null ? 0 : leaderboard.rank(own.id);
+            text.append("\nYour rank: ").append(rank).append(" of ").append(leaderboard.size());
 
-            }
+        }
+
+        return text.toString();
+    }
 
+    // Every ranked game of the batch goes through the rating engine at once
+    // and the new ratings are stored with a single update
+    private void applyRatings(List<Game> batch) {
+
+        List<MatchResult> results = new ArrayList<>();
+        for (Game game: batch) {
+            if (game.isRanked) results.add(MatchResult.of(game));
         }
+        if (results.isEmpty()) return;
 
-        synchronized (rankedPlayerQueue) {
+        Map<String, Integer> ratings = ratingEngine.rate(results, this::storedElo);
 
-            Iterator<ClientInfo> it = rankedPlayerQueue.iterator();
-            while (it.hasNext()) {
+        for (Game game: batch) {
+            if (!game.isRanked) continue;
+            for (ClientInfo player: game.getPlayers()) {
+                Integer elo = ratings.get(player.name);
+                if (elo != null) player.elo = elo;
+            }
+        }
 
-                ClientInfo curr = it.next();
-                if (curr.getToken().equals(input)) {
-                    return curr;
-                }
+        long start = System.nanoTime();
+        try { userStore.updateElo(ratings); }
+        catch (IOException e) { e.printStackTrace(); }
+        eloPersistTime.record((System.nanoTime() - start) / 1000);
+
+        for (String name: ratings.keySet()) {
+            UserRecord record = userStore.get(name);
+            if (record != null) leaderboard.update(record.id, record.elo);
+        }
+
+    }
 
+    // Recomputes every rating from the ranked games in the match history,
+    // everyone starting again from the base Elo
+    private void replayRatings() throws IOException {
+        List<MatchResult> history = new ArrayList<>();
+        try (MatchHistory.Reader reader = matchHistory.readAll()) {
+            while (reader.hasNext()) {
+                MatchRecord record = reader.next();
+                if (record.ranked) history.add(record.toResult());
             }
         }
 
-        return null;
+        RatingReplay replay = new RatingReplay(newRatingEngine(), BASE_ELO);
+        Map<String, Integer> ratings = replay.replay(history, ForkJoinPool.commonPool());
+        userStore.updateElo(ratings);
 
+        System.out.println("[SERVER] - Replayed ratings of " + ratings.size() + " players from the match history");
     }
 
-    private void authenticate(ServerCommunicator communicator, String input, String gameMode) throws IOException {
-        String delimiter = ":";
-        String[] clientResponse = input.split(delimiter);
-       
-        String choice = clientResponse[0];
+    private int storedElo(String name) {
+        UserRecord record = userStore.get(name);
+        return record == null ? BASE_ELO : record.elo;
+    }
 
-        String credentialString = clientResponse[1];
-        String credentialDelimiter = "/";  
+    private static RatingEngine newRatingEngine() {
+        switch (RATING_ENGINE) {
+            case "elo": return new EloRating(RATING_K);
+            case "glicko2": return new Glicko2Rating(GLICKO_DEVIATION, GLICKO_VOLATILITY, GLICKO_TAU);
+            default: throw new IllegalArgumentException("Unknown rating engine: " + RATING_ENGINE + ", expected elo or glicko2");
+        }
+    }
 
-        String[] credentials = credentialString.split(credentialDelimiter);
-        
-        if (credentials.length < 2) return;
-        
-        String username = credentials[0];
-        String password = credentials[1];
+    private void dumpMetrics() {
+        metrics.dump(Path.of(METRICS_FILE));
+        disconnectReaper.schedule(this::dumpMetrics, METRICS_PERIOD, TimeUnit.SECONDS);
+    }
 
-        String elo = "";
-        
-        switch (choice) {
-            
-            case "1": {
+    // Typing "stats" on the server's terminal prints every metric
+    private void createStatsConsole() {
 
-                elo = validLoginCredentials(credentials);
+        Thread console = new Thread(() -> {
+            try {
 
-                synchronized (loggedInClients) {
-                    Iterator<ClientInfo> it = loggedInClients.iterator();
-                    while (it.hasNext()) {
-        
-                        ClientInfo curr = it.next();
-                        if (curr.name.equals(username)) {
-                            communicator.write("Failed to login, re-input your credentials.");
-                            return;
-                        }
-        
-                    }
+                BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (line.trim().equals("stats")) System.out.print(metrics.report());
+                    else if (!line.isBlank()) System.out.println("[SERVER] - Unknown console command: " + line.trim() + ", try stats");
                 }
 
-                if (elo.equals("INVALID")) {
-                    communicator.write("Failed to login, re-input your credentials.");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "stats-console");
+        console.setDaemon(true);
+        console.start();
+
+    }
+
+    private ClientInfo checkToken(String input) {
+        return tokens.get(input);
+    }
+
+    // Cheap checks run here on the event loop; hashing and the disk write of
+    // a new account run on the auth stage, which posts the result back
+    private void authenticate(Session session, String gameMode, String choice, String username, String password) throws IOException {
+        ServerCommunicator communicator = session.getCommunicator();
+
+        String failure = choice.equals(Protocol.REGISTER)
+            ? "Failed to register, re-input your credentials."
+            : "Failed to login, re-input your credentials.";
+
+        if (username.isBlank() || password.isBlank()) {
+            communicator.write(failure);
+            return;
+        }
+
+        boolean submitted;
+        switch (choice) {
+            
+            case Protocol.LOGIN: {
+
+                if (isLoggedIn(username)) {
+                    communicator.write(failure);
                     return;
-                }          
+                }
 
+                submitted = authStage.submit(communicator.getLoop(),
+                    () -> validLoginCredentials(username, password),
+                    elo -> completeAuthentication(session, gameMode, username, elo, failure));
                 break;
             
             }
             
-            case "2": {
+            case Protocol.REGISTER: {
 
-                elo = validRegisterCredentials(credentials);
-                
-                if (elo.equals("INVALID")) {
-                    communicator.write("Failed to register, re-input your credentials.");
+                if (validRegisterCredentials(username).equals("INVALID")) {
+                    communicator.write(failure);
                     return;
                 }
 
-                FileWriter db_writer = new FileWriter(db, true);
-                try (BufferedWriter writer = new BufferedWriter(db_writer)) {
-                    writer.write(String.format("%s,%s,%s\n", username, PasswordHashes.hash(password), elo));
-                    db_writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
+                submitted = authStage.submit(communicator.getLoop(),
+                    () -> registerUser(username, password),
+                    elo -> completeAuthentication(session, gameMode, username, elo, failure));
                 break;
                 
             }
 
-            default: break;
+            default: {
+                communicator.write(failure);
+                return;
+            }
             
         }
-        
-        ClientInfo newPlayer = new ClientInfo(communicator, username, Integer.parseInt(elo));
-        communicator.write(newPlayer.getToken());
 
-        synchronized (loggedInClients) {
-            loggedInClients.add(newPlayer);
-        }
-
-        boolean isSimpleGame = gameMode.equals("1");
-        if (isSimpleGame) {
-            synchronized (this.simplePlayerQueue) {
-                System.out.println("[SERVER] - Adding new player to simple queue: " + newPlayer.toString());
-                simplePlayerQueue.add(newPlayer);
-                simplePlayerQueue.notify();
-            }
-        } else {
-            synchronized (this.rankedPlayerQueue) {
-                System.out.println("[SERVER] - Adding new player to ranked queue: " + newPlayer.toString());
-                rankedPlayerQueue.add(newPlayer);
-                rankedPlayerQueue.notify();
-            }
+        if (!submitted) {
+            System.err.println("[SERVER] - Auth queue full, rejecting " + username);
+            communicator.write(failure);
         }
 
     }
 
-    public String validLoginCredentials(String[] credentials) throws FileNotFoundException {
-
-        String username = credentials[0];
-        String password = credentials[1];
+    private String registerUser(String username, String password) {
+        try {
 
-        FileReader db_reader = new FileReader(db);
-        try (BufferedReader reader = new BufferedReader(db_reader)) {
+            UserRecord record = userStore.register(username, PasswordHashes.hash(password), BASE_ELO);
+            if (record == null) return "INVALID";
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-
-                String[] values = line.split(",");
-                String elo = values[2];
-
-                boolean validUsername = values[0].equals(username);
-                boolean equivalentHash = PasswordHashes.verify(password, values[1]);
-
-                if (validUsername && equivalentHash) {
-                    return elo;
-                }
-
-            }
-            db_reader.close();
+            leaderboard.update(record.id, record.elo);
+            return Integer.toString(record.elo);
 
         } catch (IOException e) {
             e.printStackTrace();
+            return "INVALID";
         }
-
-        return "INVALID";
-        
     }
 
-
-    public String validRegisterCredentials(String[] credentials) throws FileNotFoundException {
-
-        String username = credentials[0];
-
-        FileReader db_reader = new FileReader(db);
-        try (BufferedReader reader = new BufferedReader(db_reader)) {
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-
-                String[] values = line.split(",");
-                boolean invalidUsername = values[0].equals(username);
-                if (invalidUsername) return "INVALID";
-
+    private boolean isLoggedIn(String username) {
+        synchronized (loggedInClients) {
+            for (ClientInfo client: loggedInClients) {
+                if (client.name.equals(username)) return true;
             }
-            db_reader.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-
-        return Integer.toString(BASE_ELO);
-        
+        return false;
     }
 
-    private ServerCommunicator getCommunicator(SelectionKey key) {
-        for (ServerCommunicator com: connections) {
-            if (com.getKey() == key) return com;
-        }
+    private void completeAuthentication(Session session, String gameMode, String username, String elo, String failure) {
+        ServerCommunicator communicator = session.getCommunicator();
 
-        return null;
-    }
-
-    private ClientInfo getClient(SelectionKey key) {
-        for (ClientInfo client: loggedInClients) {
-            if (client.getCommunicator().getKey() == key) return client;
-        }
+        try {
 
-        return null;
-    }
+            if (!communicator.isConnected()) return;
 
-    private List<ClientInfo> getNormalPlayers() {
-        List<ClientInfo> players = new ArrayList<>();
-
-        Iterator<ClientInfo> it = simplePlayerQueue.iterator();
-        while (it.hasNext()) {
-            
-            ClientInfo player = it.next();    
-            if (player != null && player.getCommunicator().isConnected()) {
-                detachSocketChannel(player);
-                players.add(player);
-                it.remove();
+            if (elo.equals("INVALID")) {
+                communicator.write(failure);
+                return;
             }
-        
-        }
 
-        return players;
-    }
+            ClientInfo newPlayer = new ClientInfo(communicator, username, Integer.parseInt(elo));
 
-    private List<ClientInfo> getRankedPlayers() {
+            // another connection may have logged in as the same user while we were hashing
+            synchronized (loggedInClients) {
+                if (loggedInClients.contains(newPlayer)) {
+                    communicator.write(failure);
+                    return;
+                }
+                loggedInClients.add(newPlayer);
+            }
 
-        List<ClientInfo> players = new ArrayList<>();
+            communicator.write(newPlayer.getToken());
+            tokens.put(newPlayer.getToken(), newPlayer);
+            session.setClient(newPlayer);
 
-        for (ClientInfo qPlayer: this.rankedPlayerQueue) {
+            queuePlayer(newPlayer, gameMode);
 
-            if (!qPlayer.getCommunicator().isConnected()) continue;
-            players.add(qPlayer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            int timeElapsed = qPlayer.getTimeElapsed();
-            int numRelaxations = timeElapsed / ELO_RELAX_PERIOD;
-            int eloRange = ELO_RELAX_QUANTITY * (numRelaxations * numRelaxations);
+    }
 
-            int lhs = Math.max(qPlayer.elo - eloRange, 0);
-            int rhs = qPlayer.elo + eloRange;
+    public String validLoginCredentials(String username, String password) {
 
-            
-            for (ClientInfo qPlayer2: this.rankedPlayerQueue) {
-                
-                if (players.size() == PLAYERS_PER_GAME) break;
-                if (qPlayer2.equals(qPlayer)) continue;
-                
-                int elo = qPlayer2.elo;
-                if (elo >= lhs && elo <= rhs) {
-        
-                    if (qPlayer2.getCommunicator().isConnected()) players.add(qPlayer2);
-        
-                }
+        UserRecord record = userStore.get(username);
+        if (record == null) return "INVALID";
 
-            }
+        String storedHash = record.passwordHash;
+        if (PasswordHashes.verify(username, password, storedHash)) {
 
-            if (players.size() == PLAYERS_PER_GAME) {
-                
-                for (ClientInfo player: players) {
-                    detachSocketChannel(player);
-                    this.rankedPlayerQueue.remove(player);
+            // the plain password is only around now, so upgrade old hashes here
+            if (PasswordHashes.needsRehash(storedHash)) {
+                try {
+                    userStore.updatePasswordHash(username, PasswordHashes.hash(password));
+                    System.out.println("[SERVER] - Rehashed password of " + username + " with " + PasswordHashes.getIterations() + " iterations");
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-                
-                return players;
-
             }
 
-            players.clear();
-
+            return Integer.toString(record.elo);
         }
 
-        return null;
-
+        return "INVALID";
+        
     }
 
-    private void detachSocketChannel(ClientInfo client) {
 
-        ServerCommunicator communicator = client.getCommunicator();
-        communicator.cancelKey();
+    public String validRegisterCredentials(String username) {
 
-    }
+        if (userStore.get(username) != null) return "INVALID";
 
+        return Integer.toString(BASE_ELO);
+        
+    }
 
     public void run() throws IOException {
 
         createConnectionListener();
-        createDisconnectHandler();
-        createSimpleMatchmaking();
-        createRankedMatchmaking();
+        simpleMatchmaker.start();
+        rankedMatchmaker.start();
+        if (MATCH_BATCH_TICK > 0) reportMatchStats(0);
+        if (METRICS_PERIOD > 0) disconnectReaper.schedule(this::dumpMetrics, METRICS_PERIOD, TimeUnit.SECONDS);
         createEloHandler();
+        createStatsConsole();
     
     }
 }
@@ -2,13 +2,45 @@ package server;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import utils.BufferPool;
+import utils.FrameCodec;
+import utils.FrameDecoder;
+import utils.Protocol;
 
 public class ServerCommunicator {
+
+    public enum SlowConsumerPolicy { DISCONNECT, SHED }
+
+    private static int HIGH_WATERMARK = 256 * 1024;
+    private static int LOW_WATERMARK = 64 * 1024;
+    private static SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.DISCONNECT;
+    private static int MAX_GATHER = 64;
+
+    private static final LongAdder BYTES_READ = new LongAdder();
+    private static final LongAdder BYTES_WRITTEN = new LongAdder();
+
+    public static long getTotalBytesRead() { return BYTES_READ.sum(); }
+    public static long getTotalBytesWritten() { return BYTES_WRITTEN.sum(); }
+
+    // Above the high watermark a connection is a slow consumer: it is either
+    // disconnected or has new messages dropped until it drains below the low one
+    public static void configureBackPressure(int lowWatermark, int highWatermark, SlowConsumerPolicy policy) {
+        LOW_WATERMARK = lowWatermark;
+        HIGH_WATERMARK = highWatermark;
+        SLOW_CONSUMER_POLICY = policy;
+    }
     
-    private SelectionKey key;
+    private volatile SelectionKey key;
     
     public void setKey(SelectionKey key) {
         this.key = key;
@@ -24,56 +56,240 @@ public class ServerCommunicator {
         return channel;
     }
 
-    public ServerCommunicator(SelectionKey key) throws IOException {
+    private EventLoop loop;
+
+    public EventLoop getLoop() {
+        return loop;
+    }
+
+    private BufferPool pool;
+    private FrameDecoder decoder;
+    private ByteBuffer writeBuffer;
+    private boolean closed;
+
+    private Deque<ByteBuffer> outbound;
+    private ByteBuffer[] gather;
+    private long queuedBytes;
+    private boolean shedding;
+    private long shedMessages;
+    private Runnable onSlowConsumer;
+
+    public void setOnSlowConsumer(Runnable onSlowConsumer) {
+        this.onSlowConsumer = onSlowConsumer;
+    }
+
+    public ServerCommunicator(SelectionKey key, EventLoop loop, BufferPool pool) throws IOException {
         this.key = key;
         this.channel = (SocketChannel) key.channel();
+        this.loop = loop;
+        this.pool = pool;
+        this.decoder = new FrameDecoder(pool, Protocol.KNOWN_VALUES);
+        this.writeBuffer = pool.lease();
+        this.outbound = new ArrayDeque<>();
+        this.gather = new ByteBuffer[MAX_GATHER];
     }
 
-    public int read(ByteBuffer readBuffer) throws IOException {
+    // Returns every complete message that arrived, possibly none if only
+    // part of a frame was read, or null once the peer closed the connection.
+    // The list is reused by the next call.
+    public List<String[]> readMessages() throws IOException {
 
-        int bytesRead = channel.read(readBuffer);
-        
-        readBuffer.flip();
+        int bytesRead = decoder.readFrom(channel);
         if (bytesRead == -1) {
             System.err.println("[SERVER] - Closed channel: " + channel.getRemoteAddress());
+            return null;
         }
 
-        return bytesRead;
+        BYTES_READ.add(bytesRead);
+        return decoder.decode();
 
     }
 
-    public void write(String message) throws IOException {
+    // Never blocks: whatever the socket does not take right away is queued
+    // and flushed when the selector reports the channel writable
+    public void write(String... fields) throws IOException {
+
+        boolean slowConsumer;
+        synchronized (this) {
+
+            if (closed) throw new ClosedChannelException();
+            if (shedding) {
+                shedMessages++;
+                return;
+            }
+
+            if (!outbound.isEmpty()) {
+                slowConsumer = enqueue(FrameCodec.encode(fields));
+            } else {
+
+                ByteBuffer frame = writeBuffer;
+                frame.clear();
+                if (FrameCodec.encode(frame, fields)) frame.flip();
+                else frame = FrameCodec.encode(fields);
 
-        ByteBuffer writeBuffer = ByteBuffer.wrap(message.getBytes());
-        channel.write(writeBuffer);
+                BYTES_WRITTEN.add(channel.write(frame));
+                if (!frame.hasRemaining()) return;
+
+                // the write buffer is reused, so keep a copy of what is left
+                ByteBuffer rest = ByteBuffer.allocate(frame.remaining());
+                rest.put(frame).flip();
+                slowConsumer = enqueue(rest);
+
+            }
+
+        }
+
+        if (slowConsumer) handleSlowConsumer();
 
     }
 
-    public void close() throws IOException { 
-        key.cancel();
-        channel.close();
+    // Queues an already encoded frame, e.g. a read-only duplicate of a broadcast
+    public void send(ByteBuffer frame) throws IOException {
+
+        boolean slowConsumer;
+        synchronized (this) {
+
+            if (closed) throw new ClosedChannelException();
+            if (shedding) {
+                shedMessages++;
+                return;
+            }
+
+            if (outbound.isEmpty()) {
+                BYTES_WRITTEN.add(channel.write(frame));
+                if (!frame.hasRemaining()) return;
+            }
+            slowConsumer = enqueue(frame);
+
+        }
+
+        if (slowConsumer) handleSlowConsumer();
+
     }
 
+    // Encodes the message once into a read-only heap buffer and queues a
+    // duplicate of it on every recipient, so fan-out costs no copies. Frames
+    // this small are cheaper on the heap than as fresh direct buffers. A
+    // recipient that is gone is skipped without affecting the others.
+    public static void broadcast(Collection<ServerCommunicator> recipients, String... fields) {
+
+        ByteBuffer shared = FrameCodec.encode(fields).asReadOnlyBuffer();
+        for (ServerCommunicator recipient: recipients) {
+            try {
+                recipient.send(shared.duplicate());
+            } catch (IOException e) {
+                System.err.println("[SERVER] - Broadcast skipped a closed connection");
+            }
+        }
 
-    public void cancelKey() {
-        key.cancel();
-        key = null;
     }
 
-    public String readString() throws IOException {
-        
-        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-        if (read(readBuffer) <= 0) {
-            return null;   
+    // Returns true once the queue crosses the high watermark
+    private boolean enqueue(ByteBuffer frame) {
+
+        boolean wasEmpty = outbound.isEmpty();
+        outbound.add(frame);
+        queuedBytes += frame.remaining();
+
+        if (wasEmpty) setWriteInterest(true);
+
+        if (queuedBytes > HIGH_WATERMARK) {
+            if (SLOW_CONSUMER_POLICY == SlowConsumerPolicy.SHED) shedding = true;
+            return true;
+        }
+        return false;
+
+    }
+
+    private void handleSlowConsumer() throws IOException {
+
+        System.err.println("[SERVER] - Slow consumer with " + getQueuedBytes() + " bytes queued: " + channel.getRemoteAddress());
+        if (SLOW_CONSUMER_POLICY != SlowConsumerPolicy.DISCONNECT) return;
+
+        if (onSlowConsumer != null) onSlowConsumer.run();
+        else close();
+
+    }
+
+    // Called by the event loop when the channel is writable. Sends as much of
+    // the queue as the socket takes in one gathering write.
+    public synchronized void flush() throws IOException {
+
+        if (closed) return;
+
+        while (!outbound.isEmpty()) {
+
+            int count = 0;
+            long wanted = 0;
+            for (ByteBuffer frame: outbound) {
+                if (count == gather.length) break;
+                gather[count++] = frame;
+                wanted += frame.remaining();
+            }
+
+            long written = channel.write(gather, 0, count);
+            queuedBytes -= written;
+            BYTES_WRITTEN.add(written);
+            for (int i = 0; i < count; i++) gather[i] = null;
+
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) outbound.poll();
+
+            // the socket buffer is full again, wait for the next OP_WRITE
+            if (written < wanted) break;
+
+        }
+
+        if (shedding && queuedBytes < LOW_WATERMARK) {
+            shedding = false;
+            if (shedMessages > 0) System.err.println("[SERVER] - Dropped " + shedMessages + " messages for a slow consumer");
+            shedMessages = 0;
         }
 
-        Charset charset = Charset.forName("UTF-8");
-        return charset.decode(readBuffer).toString();
+        if (outbound.isEmpty()) setWriteInterest(false);
+
+    }
+
+    private void setWriteInterest(boolean enabled) {
+
+        SelectionKey currentKey = key;
+        Runnable update = () -> {
+            try {
+                if (!currentKey.isValid()) return;
+                int ops = currentKey.interestOps();
+                currentKey.interestOps(enabled ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                return;
+            }
+        };
+
+        if (loop.inEventLoop()) update.run();
+        else loop.execute(update);
+
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public void close() throws IOException { 
+        key.cancel();
+        channel.close();
+
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            pool.release(writeBuffer);
+            outbound.clear();
+            queuedBytes = 0;
+        }
 
+        // the decoder belongs to the event loop thread
+        if (loop.inEventLoop()) decoder.release();
+        else loop.execute(decoder::release);
     }
 
     public boolean isConnected() {
         return this.channel.isConnected();
     }
     
-}
\ No newline at end of file
+}
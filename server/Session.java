@@ -0,0 +1,22 @@
+package server;
+
+// Per-connection state, attached to the connection's SelectionKey so a read
+// event finds its communicator and player without searching shared lists.
+public class Session {
+
+    private final ServerCommunicator communicator;
+    private volatile ClientInfo client;
+
+    public Session(ServerCommunicator communicator) {
+        this.communicator = communicator;
+    }
+
+    public ServerCommunicator getCommunicator() { return communicator; }
+
+    // null until the connection logs in, registers or reconnects with a token
+    public ClientInfo getClient() { return client; }
+    public void setClient(ClientInfo client) { this.client = client; }
+
+    public boolean isAuthenticated() { return client != null; }
+
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Unranked queue, players are matched in arrival order
+public class SimpleQueue implements MatchQueue {
+
+    private final Set<ClientInfo> players;
+
+    public SimpleQueue() {
+        this.players = new LinkedHashSet<>();
+    }
+
+    @Override
+    public boolean add(ClientInfo client) {
+        return players.add(client);
+    }
+
+    @Override
+    public boolean remove(ClientInfo client) {
+        return players.remove(client);
+    }
+
+    @Override
+    public int size() {
+        return players.size();
+    }
+
+    // The first playersPerGame connected players, in arrival order
+    @Override
+    public List<ClientInfo> poll(int playersPerGame) {
+        List<ClientInfo> group = new ArrayList<>(playersPerGame);
+
+        for (ClientInfo player: players) {
+            if (group.size() == playersPerGame) break;
+            if (player.getCommunicator().isConnected()) group.add(player);
+        }
+
+        if (group.size() < playersPerGame) return null;
+
+        players.removeAll(group);
+        return group;
+    }
+
+    // One pass over the queue, instead of rescanning it for every group
+    @Override
+    public List<List<ClientInfo>> pollAll(int playersPerGame) {
+        List<List<ClientInfo>> groups = new ArrayList<>();
+        List<ClientInfo> group = new ArrayList<>(playersPerGame);
+
+        Iterator<ClientInfo> it = players.iterator();
+        while (it.hasNext()) {
+
+            ClientInfo player = it.next();
+            if (!player.getCommunicator().isConnected()) continue;
+
+            group.add(player);
+            if (group.size() < playersPerGame) continue;
+
+            groups.add(group);
+            group = new ArrayList<>(playersPerGame);
+
+        }
+
+        for (List<ClientInfo> full: groups) players.removeAll(full);
+        return groups;
+    }
+
+    @Override
+    public Iterator<ClientInfo> iterator() {
+        return players.iterator();
+    }
+
+}
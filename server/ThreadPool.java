@@ -1,72 +1,202 @@
 package server;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+// Work-stealing pool. Every worker owns a lock-free deque: it pops its own
+// work from the head and idle workers steal from the tail of the others.
+// Finished tasks can be handed to a single consumer through a lock-free
+// queue when completion tracking is enabled.
 public class ThreadPool {
 
-    private final List<WorkerThread> threads;
-    private final List<Runnable> taskQueue;
-    
-    public List<Runnable> completedTasks;
+    private final WorkerThread[] workers;
+    private final Queue<WorkerThread> idleWorkers;
+    private final AtomicInteger nextWorker;
+    private final AtomicInteger queuedTasks;
+    private final AtomicInteger liveWorkers;
+    private final Object terminationLock;
+    private volatile boolean running;
+
+    private final boolean trackCompletions;
+    private final Queue<Runnable> completedTasks;
+    private volatile Thread completionWaiter;
 
     public ThreadPool(int poolSize) {
-        this.threads = new LinkedList<>();
-        this.taskQueue = new LinkedList<>();
-        this.completedTasks = new ArrayList<>();
+        this(poolSize, false);
+    }
+
+    public ThreadPool(int poolSize, boolean trackCompletions) {
+        this.workers = new WorkerThread[poolSize];
+        this.idleWorkers = new ConcurrentLinkedQueue<>();
+        this.nextWorker = new AtomicInteger();
+        this.queuedTasks = new AtomicInteger();
+        this.liveWorkers = new AtomicInteger(poolSize);
+        this.terminationLock = new Object();
+        this.running = true;
+
+        this.trackCompletions = trackCompletions;
+        this.completedTasks = new ConcurrentLinkedQueue<>();
 
         for (int i = 0; i < poolSize; i++) {
-            WorkerThread worker = new WorkerThread();
-            threads.add(worker);
-            worker.start();
+            workers[i] = new WorkerThread(i);
         }
+        for (WorkerThread worker: workers) worker.start();
     }
 
     public void submit(Runnable task) {
-        synchronized (taskQueue) {
-            taskQueue.add(task);
-            taskQueue.notify();
+        if (!running) throw new RejectedExecutionException("Thread pool is shut down");
+
+        Thread current = Thread.currentThread();
+        if (current instanceof WorkerThread && ((WorkerThread) current).pool() == this) {
+            ((WorkerThread) current).tasks.addFirst(task);
+        } else {
+            int index = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+            workers[index].tasks.addLast(task);
         }
+
+        queuedTasks.incrementAndGet();
+        wakeIdleWorker();
     }
 
+    private void wakeIdleWorker() {
+        WorkerThread idle = idleWorkers.poll();
+        if (idle != null) LockSupport.unpark(idle);
+    }
+
+    public int getQueueDepth() {
+        return queuedTasks.get();
+    }
+
+    public int getPoolSize() {
+        return workers.length;
+    }
+
+    // Returns the next finished task, or null if none finished yet
+    public Runnable pollCompleted() {
+        return completedTasks.poll();
+    }
+
+    // Blocks the (single) consumer until a task finishes
+    public Runnable takeCompleted() throws InterruptedException {
+        Runnable task;
+        while ((task = completedTasks.poll()) == null) {
+
+            completionWaiter = Thread.currentThread();
+            if (completedTasks.isEmpty()) LockSupport.park(this);
+            completionWaiter = null;
+
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        return task;
+    }
+
+    // Stops accepting tasks; queued ones still run before the workers exit
     public void shutdown() {
-        synchronized (taskQueue) {
-            for (WorkerThread worker : threads) {
-                worker.stopThread();
+        running = false;
+        for (WorkerThread worker: workers) LockSupport.unpark(worker);
+    }
+
+    public void shutdownNow() {
+        running = false;
+        for (WorkerThread worker: workers) worker.interrupt();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (terminationLock) {
+            while (liveWorkers.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(terminationLock, remaining);
             }
         }
+
+        return true;
+    }
+
+    public boolean isTerminated() {
+        return liveWorkers.get() == 0;
     }
 
     private class WorkerThread extends Thread {
-        private boolean running = true;
+        private final Deque<Runnable> tasks;
+
+        WorkerThread(int index) {
+            super("pool-worker-" + index);
+            this.tasks = new ConcurrentLinkedDeque<>();
+        }
 
+        ThreadPool pool() { return ThreadPool.this; }
+
+        @Override
         public void run() {
-            while (running) {
+            try {
+
+                while (!isInterrupted()) {
 
-                Runnable task;
-                synchronized (taskQueue) {
+                    Runnable task = findTask();
+                    if (task == null) {
+                        if (!running) return;
 
-                    while (taskQueue.isEmpty()) {
-                        try { taskQueue.wait(); } 
-                        catch (InterruptedException e) { e.printStackTrace(); }
+                        // advertise as idle, then look again so a submit racing with us is not missed
+                        idleWorkers.add(this);
+                        task = findTask();
+                        if (task == null) {
+                            if (!running) return;
+                            LockSupport.park(ThreadPool.this);
+                            idleWorkers.remove(this);
+                            continue;
+                        }
+
+                        // a submit already took us off the idle list to wake us, but we are
+                        // busy with this task, so its wake-up goes to another idle worker
+                        if (!idleWorkers.remove(this)) wakeIdleWorker();
                     }
 
-                    task = taskQueue.remove(0);
-                }
+                    queuedTasks.decrementAndGet();
+                    try { task.run(); }
+                    catch (RuntimeException e) { e.printStackTrace(); }
 
-                task.run();
-                completedTasks.add(task);
+                    if (trackCompletions) publishCompletion(task);
+                }
 
-                if (!running && taskQueue.isEmpty()) {
-                    return;
+            } finally {
+                idleWorkers.remove(this);
+                if (liveWorkers.decrementAndGet() == 0) {
+                    synchronized (terminationLock) { terminationLock.notifyAll(); }
                 }
             }
         }
 
-        public void stopThread() {
-            running = false;
-            interrupt();
+        private Runnable findTask() {
+            Runnable task = tasks.pollFirst();
+            if (task != null) return task;
+
+            int start = ThreadLocalRandom.current().nextInt(workers.length);
+            for (int i = 0; i < workers.length; i++) {
+                WorkerThread victim = workers[(start + i) % workers.length];
+                if (victim == this) continue;
+
+                task = victim.tasks.pollLast();
+                if (task != null) return task;
+            }
+
+            return null;
         }
     }
+
+    private void publishCompletion(Runnable task) {
+        completedTasks.add(task);
+
+        Thread waiter = completionWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
 }
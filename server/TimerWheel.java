@@ -0,0 +1,154 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashed timer wheel: scheduling and cancelling are O(1) and the wheel thread
+// only ticks while there is something scheduled, parking otherwise.
+public class TimerWheel {
+
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicBoolean done;
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.done = new AtomicBoolean(false);
+        }
+
+        // returns false if the task already ran or was cancelled before
+        public boolean cancel() {
+            if (!done.compareAndSet(false, true)) return false;
+            pending.decrementAndGet();
+            return true;
+        }
+
+        public boolean isDone() { return done.get(); }
+    }
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> incoming;
+    private final AtomicInteger pending;
+    private final Object idleLock;
+    private final Thread thread;
+    private final long startTime;
+
+    private long tick;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new List[size];
+        this.mask = size - 1;
+        this.incoming = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicInteger();
+        this.idleLock = new Object();
+        this.startTime = System.nanoTime();
+
+        for (int i = 0; i < size; i++) wheel[i] = new LinkedList<>();
+
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        Timeout timeout = new Timeout(task, deadline);
+
+        incoming.add(timeout);
+        if (pending.getAndIncrement() == 0) {
+            synchronized (idleLock) { idleLock.notify(); }
+        }
+
+        return timeout;
+    }
+
+    public int pendingTimeouts() {
+        return pending.get();
+    }
+
+    public void shutdown() {
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                if (pending.get() == 0) {
+                    synchronized (idleLock) {
+                        while (pending.get() == 0) idleLock.wait();
+                    }
+                    // nothing live is left on the wheel, so skip the ticks spent idle
+                    tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                }
+
+                long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+                if (sleep > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+
+                transferIncoming();
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+
+            }
+
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+
+            if (timeout.isDone()) continue;
+
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = Math.max(calculated - tick, 0) / wheel.length;
+
+            long target = Math.max(calculated, tick);
+            wheel[(int) (target & mask)].add(timeout);
+
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+
+            Timeout timeout = it.next();
+            if (timeout.isDone()) {
+                it.remove();
+                continue;
+            }
+
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                continue;
+            }
+
+            it.remove();
+            if (!timeout.cancel()) continue;
+
+            try { timeout.task.run(); }
+            catch (RuntimeException e) { e.printStackTrace(); }
+
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package server;
+
+public class UserRecord {
+
+    public final int id;
+    public final String name;
+    public volatile String passwordHash;
+    public volatile int elo;
+
+    public UserRecord(int id, String name, String passwordHash, int elo) {
+        this.id = id;
+        this.name = name;
+        this.passwordHash = passwordHash;
+        this.elo = elo;
+    }
+
+    public String toCsv() { return String.format("%s,%s,%d", name, passwordHash, elo); }
+
+    public static UserRecord fromCsv(int id, String line) {
+        String[] values = line.split(",");
+        if (values.length < 3) return null;
+
+        try { return new UserRecord(id, values[0], values[1], Integer.parseInt(values[2].trim())); }
+        catch (NumberFormatException e) { return null; }
+    }
+
+    @Override
+    public String toString() { return String.format("%s - %d elo", name, elo); }
+}
@@ -0,0 +1,24 @@
+package server;
+
+import java.io.IOException;
+import java.util.Map;
+
+public interface UserStore {
+
+    // returns null when no user with that name exists
+    UserRecord get(String name);
+
+    // ids run from 0 to size() - 1, returns null outside that range
+    UserRecord get(int id);
+
+    // returns null when the name is already taken
+    UserRecord register(String name, String passwordHash, int elo) throws IOException;
+
+    void updateElo(Map<String, Integer> changes) throws IOException;
+
+    // used to upgrade a stored hash after the hashing parameters change
+    void updatePasswordHash(String name, String passwordHash) throws IOException;
+
+    int size();
+
+}
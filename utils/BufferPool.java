@@ -0,0 +1,57 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed-size direct buffers carved out of one slab and leased per connection.
+// When the slab runs dry extra buffers are allocated and later pooled too.
+public class BufferPool {
+
+    private final int bufferSize;
+    private final Queue<ByteBuffer> free;
+    private final AtomicInteger leased;
+    private final AtomicInteger overflow;
+
+    public BufferPool(int bufferSize, int slabBuffers) {
+        this.bufferSize = bufferSize;
+        this.free = new ConcurrentLinkedQueue<>();
+        this.leased = new AtomicInteger();
+        this.overflow = new AtomicInteger();
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * slabBuffers);
+        for (int i = 0; i < slabBuffers; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            free.add(slab.slice());
+        }
+    }
+
+    public int getBufferSize() { return bufferSize; }
+
+    public ByteBuffer lease() {
+        leased.incrementAndGet();
+
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            overflow.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    // Buffers that did not come from this pool are left to the GC
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) return;
+
+        leased.decrementAndGet();
+        free.add(buffer);
+    }
+
+    public int getLeased() { return leased.get(); }
+
+    public int getOverflow() { return overflow.get(); }
+
+}
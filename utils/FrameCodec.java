@@ -0,0 +1,133 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Wire format shared by the client and the server. Every message is a frame:
+// a varint payload length followed by the payload, which is a list of
+// fields, each a varint byte length followed by UTF-8 bytes.
+public class FrameCodec {
+
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    public static ByteBuffer encode(String... fields) {
+        ByteBuffer frame = ByteBuffer.allocate(frameSize(fields));
+        encode(frame, fields);
+
+        frame.flip();
+        return frame;
+    }
+
+    public static int frameSize(String... fields) {
+        int payloadSize = payloadSize(fields);
+        return varintSize(payloadSize) + payloadSize;
+    }
+
+    private static int payloadSize(String... fields) {
+        int payloadSize = 0;
+        for (String field: fields) {
+            int length = utf8Length(field);
+            payloadSize += varintSize(length) + length;
+        }
+
+        if (payloadSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame of " + payloadSize + " bytes exceeds " + MAX_FRAME_SIZE);
+        }
+        return payloadSize;
+    }
+
+    // Allocation-free variant: encodes straight into out. Returns false and
+    // leaves out untouched if the frame does not fit.
+    public static boolean encode(ByteBuffer out, String... fields) {
+        int payloadSize = payloadSize(fields);
+        if (out.remaining() < varintSize(payloadSize) + payloadSize) return false;
+
+        writeVarint(out, payloadSize);
+        for (String field: fields) {
+            writeVarint(out, utf8Length(field));
+            writeUtf8(out, field);
+        }
+
+        return true;
+    }
+
+    public static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) length += 1;
+            else length += 3;
+        }
+        return length;
+    }
+
+    // Unpaired surrogates are written as '?', matching String.getBytes
+    private static void writeUtf8(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // Returns -1 if the buffer ends before the varint does, leaving the
+    // position wherever it stopped; callers reset to their mark.
+    public static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) return -1;
+
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) throw new IOException("Negative varint");
+                return value;
+            }
+        }
+
+        throw new IOException("Varint longer than 5 bytes");
+    }
+
+}
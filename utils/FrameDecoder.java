@@ -0,0 +1,141 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Per-connection decoder: reads straight into its buffer, accumulates bytes
+// across reads and yields every complete frame, so partial reads and several
+// messages per read both work. The buffer and the UTF-8 decoding state are
+// reused, and fields equal to one of the known values (commands, menu
+// options) come back as that constant instead of a new String.
+public class FrameDecoder {
+
+    private final BufferPool pool;
+    private final String[] knownValues;
+    private final CharsetDecoder utf8;
+    private final List<String[]> messages;
+    private final List<String> fields;
+
+    private ByteBuffer buffer;
+    private CharBuffer chars;
+
+    public FrameDecoder() {
+        this(null);
+    }
+
+    public FrameDecoder(BufferPool pool, String... knownValues) {
+        this.pool = pool;
+        this.knownValues = knownValues;
+        this.utf8 = StandardCharsets.UTF_8.newDecoder();
+        this.messages = new ArrayList<>();
+        this.fields = new ArrayList<>();
+        this.buffer = pool != null ? pool.lease() : ByteBuffer.allocateDirect(4096);
+        this.chars = CharBuffer.allocate(256);
+    }
+
+    // Reads whatever the channel has into the accumulation buffer
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            // a full buffer only ever holds the start of a single frame
+            int largestFrame = FrameCodec.MAX_FRAME_SIZE + FrameCodec.varintSize(FrameCodec.MAX_FRAME_SIZE);
+            if (buffer.capacity() >= largestFrame) throw new IOException("Peer sent more than a frame without completing it");
+            grow(Math.min(buffer.capacity() * 2, largestFrame));
+        }
+        return channel.read(buffer);
+    }
+
+    // in must be in read mode; it is fully consumed
+    public List<String[]> decode(ByteBuffer in) throws IOException {
+        if (buffer.remaining() < in.remaining()) grow(buffer.position() + in.remaining());
+        buffer.put(in);
+        return decode();
+    }
+
+    // Decodes every complete frame buffered so far. The returned list is
+    // reused by the next call, so consume it before reading again.
+    public List<String[]> decode() throws IOException {
+        messages.clear();
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+
+            buffer.mark();
+            int length = FrameCodec.readVarint(buffer);
+            if (length > FrameCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Frame of " + length + " bytes exceeds " + FrameCodec.MAX_FRAME_SIZE);
+            }
+
+            if (length < 0 || buffer.remaining() < length) {
+                buffer.reset();
+                break;
+            }
+
+            messages.add(readFields(length));
+        }
+
+        buffer.compact();
+        return messages;
+    }
+
+    private String[] readFields(int length) throws IOException {
+        int end = buffer.position() + length;
+        fields.clear();
+
+        while (buffer.position() < end) {
+
+            int fieldLength = FrameCodec.readVarint(buffer);
+            if (fieldLength < 0 || fieldLength > end - buffer.position()) {
+                throw new IOException("Malformed frame field");
+            }
+
+            fields.add(readString(fieldLength));
+
+        }
+
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    private String readString(int length) throws CharacterCodingException {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+
+        if (chars.capacity() < length) chars = CharBuffer.allocate(length);
+        chars.clear();
+
+        utf8.reset();
+        CoderResult result = utf8.decode(buffer, chars, true);
+        if (result.isError()) result.throwException();
+        utf8.flush(chars);
+
+        buffer.limit(limit);
+        chars.flip();
+
+        for (String known: knownValues) {
+            if (known.contentEquals(chars)) return known;
+        }
+        return chars.toString();
+    }
+
+    private void grow(int needed) {
+        ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(needed, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+
+        if (pool != null) pool.release(buffer);
+        buffer = grown;
+    }
+
+    public void release() {
+        if (pool != null) pool.release(buffer);
+        buffer = null;
+    }
+
+}
@@ -1,29 +1,73 @@
 package utils;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class PasswordHashes {
 
+    public static final int DEFAULT_ITERATIONS = 65536;
+    private static int CACHE_CAPACITY = 16384;
+
+    // getInstance and SecureRandom seeding are not free, keep one per thread
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try { return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256"); }
+        catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    });
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<Mac> CACHE_MAC = new ThreadLocal<>();
+
+    private static volatile int iterations = DEFAULT_ITERATIONS;
+
+    // Successful verifications, keyed by an HMAC of (user, password, stored
+    // hash) under a key that only lives in this process, so the map never
+    // holds anything that could be checked offline.
+    private static final Map<String, Long> verified = new ConcurrentHashMap<>();
+    private static volatile byte[] cacheKey;
+    private static volatile long cacheTtlNanos;
+
+    public static void setIterations(int iterations) {
+        if (iterations < 1) throw new IllegalArgumentException("iterations must be positive");
+        PasswordHashes.iterations = iterations;
+    }
+
+    public static int getIterations() {
+        return iterations;
+    }
+
+    // A TTL of 0 turns the cache off. The key is fixed on first use.
+    public static synchronized void setVerificationCacheTtl(long ttl, TimeUnit unit) {
+        if (cacheKey == null) {
+            byte[] key = new byte[32];
+            RANDOM.get().nextBytes(key);
+            cacheKey = key;
+        }
+        cacheTtlNanos = unit.toNanos(ttl);
+        if (cacheTtlNanos == 0) verified.clear();
+    }
+
     public static String hash(String password) {
-        int iterations = 65536;
-        char[] chars = password.toCharArray();
+        int iterations = PasswordHashes.iterations;
         byte[] salt = generateSalt();
 
         try {
 
-            PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, 128);
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            byte[] hash = skf.generateSecret(spec).getEncoded();
-
+            byte[] hash = pbkdf2(password, salt, iterations, 128);
             return iterations + ":" + Base64.getEncoder().encodeToString(salt) + ":" + Base64.getEncoder().encodeToString(hash);
        
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+        } catch (InvalidKeySpecException e) {
             e.printStackTrace();
         }
 
@@ -38,23 +82,97 @@ public class PasswordHashes {
 
         try {
 
-            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, hash.length * 8);
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            byte[] testHash = skf.generateSecret(spec).getEncoded();
-
-            return Arrays.equals(hash, testHash);
+            byte[] testHash = pbkdf2(password, salt, iterations, hash.length * 8);
+            return MessageDigest.isEqual(hash, testHash);
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+        } catch (InvalidKeySpecException e) {
             e.printStackTrace();
         }
 
         return false;
     }
 
+    // Same as verify, but a recent successful check of the same credentials
+    // against the same stored hash is answered from the cache
+    public static boolean verify(String user, String password, String hashedPassword) {
+        long ttl = cacheTtlNanos;
+        if (ttl == 0) return verify(password, hashedPassword);
+
+        String key = cacheKey(user, password, hashedPassword);
+        long now = System.nanoTime();
+
+        Long expiresAt = verified.get(key);
+        if (expiresAt != null && expiresAt - now > 0) return true;
+
+        if (!verify(password, hashedPassword)) return false;
+
+        if (verified.size() >= CACHE_CAPACITY) evictExpired(now);
+        if (verified.size() < CACHE_CAPACITY) verified.put(key, now + ttl);
+        return true;
+    }
+
+    // True when the stored hash was made with other parameters than the current ones
+    public static boolean needsRehash(String hashedPassword) {
+        int separator = hashedPassword.indexOf(':');
+        if (separator < 0) return true;
+
+        try { return Integer.parseInt(hashedPassword.substring(0, separator)) != iterations; }
+        catch (NumberFormatException e) { return true; }
+    }
+
+    public static int cachedVerifications() {
+        return verified.size();
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int keyLength) throws InvalidKeySpecException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+        try {
+            return FACTORY.get().generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String cacheKey(String user, String password, String hashedPassword) {
+        try {
+
+            Mac mac = CACHE_MAC.get();
+            if (mac == null) {
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+                CACHE_MAC.set(mac);
+            }
+
+            // lengths first so ("ab", "c") and ("a", "bc") don't collide
+            byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+            byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+            mac.update(intBytes(userBytes.length));
+            mac.update(userBytes);
+            mac.update(intBytes(passwordBytes.length));
+            mac.update(passwordBytes);
+            mac.update(hashedPassword.getBytes(StandardCharsets.UTF_8));
+
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    private static void evictExpired(long now) {
+        Iterator<Long> it = verified.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() - now <= 0) it.remove();
+        }
+    }
+
     public static byte[] generateSalt() {
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
-        random.nextBytes(salt);
+        RANDOM.get().nextBytes(salt);
         return salt;
     }
 
@@ -0,0 +1,31 @@
+package utils;
+
+// Commands a client can send; each is the first field of a frame.
+//
+//   TOKEN <token>                                   reconnect with a saved token
+//   AUTH <game mode> <login|register> <name> <pw>   log in or register and queue
+//   QUEUE <game mode>                               queue again after a game
+//   INPUT <text>                                    in-game input
+//   RANK [count]                                    leaderboard top and own rank
+//   QUIT                                            leave
+//
+// The server answers with single-field frames holding the text to show.
+public class Protocol {
+
+    public static final String TOKEN = "TOKEN";
+    public static final String AUTH = "AUTH";
+    public static final String QUEUE = "QUEUE";
+    public static final String INPUT = "INPUT";
+    public static final String QUIT = "QUIT";
+    public static final String RANK = "RANK";
+
+    public static final String SIMPLE = "1";
+    public static final String RANKED = "2";
+
+    public static final String LOGIN = "1";
+    public static final String REGISTER = "2";
+
+    // decoded as these constants rather than fresh Strings
+    public static final String[] KNOWN_VALUES = { TOKEN, AUTH, QUEUE, INPUT, QUIT, RANK, SIMPLE, RANKED };
+
+}